@@ -0,0 +1,4 @@
+# ./bench.sh [JMH options], e.g. ./bench.sh Stream -f 1 or ./bench.sh -l
+# results are written to bench-results.json
+mvn -B -q -Pbench package || exit 1
+java -jar target/benchmarks.jar -rf json -rff bench-results.json "$@"
@@ -0,0 +1,74 @@
+package tail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// the recording index of a large directory: a full reconciliation scan and a single watch event
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class DirectoryBenchmark {
+
+	@Param("10000")
+	public int files;
+
+	private File temp;
+	private File directory;
+	private DirectoryIndex index;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws IOException {
+		Fixtures.silence();
+		temp = Fixtures.createTempDirectory();
+		directory = new File(temp, "LocalRecording1");
+		if (!directory.mkdir())
+			throw new IOException("Can't create " + directory);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < files; i++) {
+			File file = new File(directory, "recording" + i + ".flv");
+			Fixtures.writeFile(file, 0);
+			file.setLastModified(now - (files - i) * 1000L);
+		}
+		index = new DirectoryIndex(directory);
+		index.update(false);
+	}
+
+	@TearDown
+	public void tearDown() {
+		Fixtures.delete(temp);
+	}
+
+	@Benchmark
+	public void scan(Blackhole blackhole) {
+		DirectoryIndex index = new DirectoryIndex(directory);
+		blackhole.consume(index.update(false));
+		blackhole.consume(index.getNewest());
+	}
+
+	@Benchmark
+	public void event(Blackhole blackhole) {
+		index.changed("recording" + next + ".flv");
+		next = (next + 1) % files;
+		blackhole.consume(index.update(true));
+		blackhole.consume(index.getNewest());
+	}
+}
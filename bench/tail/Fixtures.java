@@ -0,0 +1,86 @@
+package tail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// files and output shared by the benchmarks
+final class Fixtures {
+
+	private static File recordings = null;
+
+	// the read methods log every open, which would end up in the measurements
+	static void silence() {
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+
+			@Override
+			public void write(byte[] b, int off, int len) {}
+		}));
+	}
+
+	static File createTempDirectory() throws IOException {
+		File temp = File.createTempFile("tailbench", "");
+		if (!temp.delete() || !temp.mkdir())
+			throw new IOException("Can't create " + temp);
+		return temp;
+	}
+
+	// a recording directory with a TailDirectory monitor, like the server's. tail.roots is read once when
+	// TailServer is loaded, so there is one per JVM and it is deleted when the JVM exits
+	static synchronized File recordingDirectory() throws IOException {
+		if (recordings == null) {
+			final File directory = createTempDirectory();
+			System.setProperty("tail.roots", directory.getPath());
+			if (!directory.getPath().equals(TailServer.RECORDING_ROOTS))
+				throw new IllegalStateException("TailServer was loaded before tail.roots was set");
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					delete(directory);
+				}
+			});
+			Thread monitor = new Thread(new TailDirectory(), "TailDirectory");
+			monitor.setDaemon(true);
+			monitor.start();
+			recordings = directory;
+		}
+		return recordings;
+	}
+
+	// waits until the monitor has found the recording and knows it doesn't grow anymore
+	static void awaitFinished(File file) throws IOException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!TailDirectory.isFileNotGrowingSince(file)) {
+			if (System.currentTimeMillis() > deadline)
+				throw new IOException("Not finished after 10 seconds: " + file);
+			if (!TailServer.sleep(10))
+				throw new IOException("Interrupted");
+		}
+	}
+
+	static void writeFile(File file, long size) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			byte[] block = new byte[1024 * 1024];
+			for (int i = 0; i < block.length; i++)
+				block[i] = (byte) i;
+			for (long written = 0; written < size; written += block.length)
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+		} finally {
+			out.close();
+		}
+	}
+
+	static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				delete(child);
+		}
+		file.delete();
+	}
+}
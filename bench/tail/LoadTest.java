@@ -0,0 +1,405 @@
+package tail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// load test: a fake recorder appends FLV tags to LocalRecording1/loadtest.flv, a TailServer child process
+// serves it on loopback and N viewers stream it with mixed start offsets and read speeds
+//
+// java -cp target/benchmarks.jar -Dloadtest.viewers=200 -Dloadtest.bitrate=4000 tail.LoadTest
+public class LoadTest {
+
+	private static final int VIEWERS = Integer.getInteger("loadtest.viewers", 50);
+	// kbit/s of the fake recording
+	private static final int BITRATE = Integer.getInteger("loadtest.bitrate", 2000);
+	private static final int DURATION = Integer.getInteger("loadtest.duration", 30);
+	// seconds of recording that already exist when the server starts
+	private static final int PREROLL = Integer.getInteger("loadtest.preroll", 60);
+	// share of viewers that read slower than the recording grows, and how much slower
+	private static final double SLOW_SHARE = Double.parseDouble(System.getProperty("loadtest.slow", "0.2"));
+	private static final double SLOW_RATE = Double.parseDouble(System.getProperty("loadtest.slow.rate", "0.5"));
+	private static final int PORT = Integer.getInteger("loadtest.port", 8081);
+	// extra JVM options for the server, e.g. "-Dtail.engine=selector -Xmx256m"
+	private static final String SERVER_OPTIONS = System.getProperty("loadtest.server.options", "");
+	private static final String OUT = System.getProperty("loadtest.out");
+
+	private static final int FPS = 25;
+	private static final int GOP = 2 * FPS;
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final String[] RANGES = { null, "bytes=50%-", "bytes=100%-" };
+	private static final String[] PROFILES = { "start", "middle", "edge" };
+
+	private static volatile boolean running = true;
+
+	public static void main(String[] args) throws Exception {
+		File temp = File.createTempFile("tailload", "");
+		if (!temp.delete() || !temp.mkdir())
+			throw new IOException("Can't create " + temp);
+		File directory = new File(temp, "LocalRecording1");
+		directory.mkdir();
+		File recording = new File(directory, "loadtest.flv");
+
+		Recorder recorder = new Recorder(recording);
+		recorder.preroll(PREROLL);
+		Thread recorderThread = new Thread(recorder, "Recorder");
+		recorderThread.setDaemon(true);
+		recorderThread.start();
+
+		Process server = startServer(temp);
+		List<Viewer> viewers = new ArrayList<Viewer>();
+		try {
+			waitForServer(recording.getName());
+			System.out.println("Recording at " + BITRATE + " kbit/s, " + VIEWERS + " viewers for " + DURATION + " s");
+
+			// idle baseline of the server process
+			Map<String, Double> before = scrape();
+			TailServer.sleep(5000);
+			Map<String, Double> idle = scrape();
+			double idleCpu = (value(idle, "process_cpu_seconds_total") - value(before, "process_cpu_seconds_total")) / 5;
+			double idleHeap = value(idle, "jvm_memory_bytes_used{area=\"heap\"}");
+			double idleThreads = value(idle, "jvm_threads_current");
+
+			for (int i = 0; i < VIEWERS; i++) {
+				Viewer viewer = new Viewer(i);
+				viewers.add(viewer);
+				Thread thread = new Thread(viewer, "Viewer " + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			// let everyone connect and catch up before measuring
+			TailServer.sleep(2000);
+
+			Map<String, Double> start = scrape();
+			long startTime = System.nanoTime();
+			long[] received = new long[VIEWERS];
+			for (int i = 0; i < VIEWERS; i++)
+				received[i] = viewers.get(i).received;
+			List<Double> lags = new ArrayList<Double>();
+			Map<Viewer, Double> maxLag = new HashMap<Viewer, Double>();
+			double heap = 0;
+			int samples = 0;
+			for (int second = 0; second < DURATION; second++) {
+				TailServer.sleep(1000);
+				Map<String, Double> sample = scrape();
+				heap += value(sample, "jvm_memory_bytes_used{area=\"heap\"}");
+				samples++;
+				for (Viewer viewer : viewers) {
+					Double lag = sample.get("lag:" + viewer.localPort);
+					if (lag == null)
+						continue;
+					lags.add(lag);
+					Double max = maxLag.get(viewer);
+					if (max == null || lag > max)
+						maxLag.put(viewer, lag);
+				}
+			}
+			Map<String, Double> end = scrape();
+			double seconds = (System.nanoTime() - startTime) / 1e9;
+			running = false;
+
+			long total = 0;
+			long[] perProfile = new long[PROFILES.length];
+			int connected = 0;
+			for (int i = 0; i < VIEWERS; i++) {
+				Viewer viewer = viewers.get(i);
+				long bytes = viewer.received - received[i];
+				total += bytes;
+				perProfile[viewer.profile] += bytes;
+				if (viewer.error == null)
+					connected++;
+			}
+			double cpu = (value(end, "process_cpu_seconds_total") - value(start, "process_cpu_seconds_total")) / seconds;
+			double bytesPerSecond = BITRATE * 1000 / 8.0;
+
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"viewers\":").append(VIEWERS);
+			sb.append(",\"connected\":").append(connected);
+			sb.append(",\"bitrate_kbits\":").append(BITRATE);
+			sb.append(",\"seconds\":").append(format(seconds));
+			sb.append(",\"throughput_bytes\":").append(format(total / seconds));
+			sb.append(",\"server_throughput_bytes\":").append(
+					format((value(end, "tailserver_bytes_sent_total") - value(start, "tailserver_bytes_sent_total"))
+							/ seconds));
+			for (int p = 0; p < PROFILES.length; p++)
+				sb.append(",\"throughput_").append(PROFILES[p]).append("_bytes\":").append(format(perProfile[p] / seconds));
+			sb.append(",\"lag_seconds\":{");
+			sb.append("\"mean\":").append(format(mean(lags) / bytesPerSecond));
+			sb.append(",\"p50\":").append(format(percentile(lags, 0.5) / bytesPerSecond));
+			sb.append(",\"p95\":").append(format(percentile(lags, 0.95) / bytesPerSecond));
+			sb.append(",\"max\":").append(format(percentile(lags, 1) / bytesPerSecond));
+			sb.append("}");
+			sb.append(",\"clients\":[");
+			for (int i = 0; i < VIEWERS; i++) {
+				Viewer viewer = viewers.get(i);
+				Double lag = maxLag.get(viewer);
+				if (i > 0)
+					sb.append(',');
+				sb.append("{\"profile\":\"").append(PROFILES[viewer.profile]).append("\",\"slow\":").append(viewer.slow);
+				sb.append(",\"bytes\":").append(viewer.received - received[i]);
+				sb.append(",\"max_lag_seconds\":").append(lag != null ? format(lag / bytesPerSecond) : "null").append('}');
+			}
+			sb.append("]");
+			sb.append(",\"cpu_idle\":").append(format(idleCpu));
+			sb.append(",\"cpu\":").append(format(cpu));
+			sb.append(",\"cpu_per_viewer\":").append(format((cpu - idleCpu) / VIEWERS));
+			sb.append(",\"heap_bytes_per_viewer\":").append(format((heap / samples - idleHeap) / VIEWERS));
+			sb.append(",\"threads_per_viewer\":").append(
+					format((value(end, "jvm_threads_current") - idleThreads) / VIEWERS));
+			sb.append("}\n");
+
+			System.out.println(String.format(Locale.ROOT, "Throughput:      %s/s (%d of %d viewers connected)",
+					TailServer.formatBytesHumanReadable(total / seconds), connected, VIEWERS));
+			System.out.println(String.format(Locale.ROOT, "Live-edge lag:   mean %.2f s, p95 %.2f s, max %.2f s",
+					mean(lags) / bytesPerSecond, percentile(lags, 0.95) / bytesPerSecond, percentile(lags, 1)
+							/ bytesPerSecond));
+			System.out.println(String.format(Locale.ROOT, "CPU per viewer:  %.3f %% of a core", 100 * (cpu - idleCpu)
+					/ VIEWERS));
+			System.out.println("Heap per viewer: "
+					+ TailServer.formatBytesHumanReadable(Math.max(0, heap / samples - idleHeap) / VIEWERS));
+			if (OUT != null) {
+				OutputStream file = new FileOutputStream(OUT);
+				try {
+					file.write(sb.toString().getBytes(Charset.forName("UTF-8")));
+				} finally {
+					file.close();
+				}
+				System.out.println("Results written to " + OUT);
+			} else {
+				System.out.print(sb);
+			}
+		} finally {
+			running = false;
+			server.destroy();
+			server.waitFor();
+			recorderThread.interrupt();
+			delete(temp);
+		}
+	}
+
+	private static Process startServer(File directory) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if (!SERVER_OPTIONS.trim().isEmpty())
+			command.addAll(Arrays.asList(SERVER_OPTIONS.trim().split("\\s+")));
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("tail.TailServer");
+		command.add("--headless");
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.directory(directory);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(directory, "server.log"));
+		return builder.start();
+	}
+
+	private static void waitForServer(String name) throws IOException {
+		long deadline = System.currentTimeMillis() + 30000;
+		while (true) {
+			try {
+				if (get("/files").contains(name))
+					return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline)
+					throw e;
+			}
+			TailServer.sleep(200);
+		}
+	}
+
+	// metrics of the server, with the client lag keyed by "lag:<client port>"
+	private static Map<String, Double> scrape() throws IOException {
+		Map<String, Double> values = new HashMap<String, Double>();
+		for (String line : get("/metrics").split("\n")) {
+			if (line.startsWith("#") || line.isEmpty())
+				continue;
+			int space = line.lastIndexOf(' ');
+			String name = line.substring(0, space);
+			double value = Double.parseDouble(line.substring(space + 1));
+			if (name.startsWith("tailserver_client_lag_bytes{")) {
+				int start = name.indexOf("client=\"") + 8;
+				int end = name.indexOf('"', start);
+				String client = name.substring(start, end);
+				name = "lag:" + client.substring(client.lastIndexOf(':') + 1);
+			}
+			values.put(name, value);
+		}
+		return values;
+	}
+
+	private static String get(String path) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress("127.0.0.1", PORT), 5000);
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(("GET " + path + " HTTP/1.0\r\n\r\n").getBytes(LATIN1));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), LATIN1));
+			String line;
+			while ((line = reader.readLine()) != null && !line.isEmpty()) {}
+			StringBuilder body = new StringBuilder();
+			while ((line = reader.readLine()) != null)
+				body.append(line).append('\n');
+			return body.toString();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static double value(Map<String, Double> values, String name) {
+		Double value = values.get(name);
+		return value != null ? value : 0;
+	}
+
+	private static double mean(List<Double> values) {
+		double sum = 0;
+		for (double value : values)
+			sum += value;
+		return values.isEmpty() ? 0 : sum / values.size();
+	}
+
+	private static double percentile(List<Double> values, double p) {
+		if (values.isEmpty())
+			return 0;
+		Double[] sorted = values.toArray(new Double[values.size()]);
+		Arrays.sort(sorted);
+		return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	// appends 25 fps of AVC video tags with a keyframe every two seconds at the configured bitrate
+	private static class Recorder implements Runnable {
+		private final OutputStream out;
+		private final int frameSize = Math.max(16, BITRATE * 1000 / 8 / FPS);
+		private long frame = 0;
+
+		Recorder(File file) throws IOException {
+			out = new FileOutputStream(file);
+			out.write(new byte[] { 'F', 'L', 'V', 1, 1, 0, 0, 0, 9, 0, 0, 0, 0 });
+			tag(9, 0, new byte[] { 0x17, 0, 0, 0, 0, 1, 0x64, 0, 0x1f });
+		}
+
+		void preroll(int seconds) throws IOException {
+			while (frame < seconds * FPS)
+				frame();
+			out.flush();
+		}
+
+		private void frame() throws IOException {
+			boolean key = frame % GOP == 0;
+			// keyframes are bigger, the average still matches the bitrate
+			int size = key ? frameSize * 5 : frameSize * (GOP - 5) / (GOP - 1);
+			byte[] data = new byte[size];
+			data[0] = (byte) (key ? 0x17 : 0x27);
+			data[1] = 1;
+			tag(9, frame * 1000 / FPS, data);
+			frame++;
+		}
+
+		private void tag(int type, long timestamp, byte[] data) throws IOException {
+			byte[] header = new byte[] { (byte) type, (byte) (data.length >> 16), (byte) (data.length >> 8),
+					(byte) data.length, (byte) (timestamp >> 16), (byte) (timestamp >> 8), (byte) timestamp,
+					(byte) (timestamp >> 24), 0, 0, 0 };
+			int previous = header.length + data.length;
+			out.write(header);
+			out.write(data);
+			out.write(new byte[] { (byte) (previous >> 24), (byte) (previous >> 16), (byte) (previous >> 8),
+					(byte) previous });
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime() - frame * 1000000000L / FPS;
+			try {
+				while (true) {
+					long due = start + frame * 1000000000L / FPS;
+					long wait = (due - System.nanoTime()) / 1000000;
+					if (wait > 0 && !TailServer.sleep(wait))
+						break;
+					frame();
+					out.flush();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				try {
+					out.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	private static class Viewer implements Runnable {
+		final int profile;
+		final boolean slow;
+		volatile long received = 0;
+		volatile int localPort = -1;
+		volatile Exception error = null;
+
+		Viewer(int index) {
+			profile = index % RANGES.length;
+			// spread the slow readers over all profiles
+			slow = (int) ((index + 1) * SLOW_SHARE) > (int) (index * SLOW_SHARE);
+		}
+
+		@Override
+		public void run() {
+			Socket socket = new Socket();
+			try {
+				socket.setReceiveBufferSize(64 * 1024);
+				socket.connect(new InetSocketAddress("127.0.0.1", PORT), 5000);
+				localPort = socket.getLocalPort();
+				String range = RANGES[profile];
+				socket.getOutputStream().write(
+						("GET / HTTP/1.1\r\nHost: 127.0.0.1\r\nUser-Agent: LoadTest\r\n"
+								+ (range != null ? "Range: " + range + "\r\n" : "") + "\r\n").getBytes(LATIN1));
+				InputStream in = socket.getInputStream();
+				byte[] buffer = new byte[16384];
+				// slow readers drain at a fixed rate below the bitrate
+				double rate = BITRATE * 1000 / 8.0 * SLOW_RATE;
+				long start = System.nanoTime();
+				int read;
+				while (running && (read = in.read(buffer, 0, slow ? 4096 : buffer.length)) != -1) {
+					received += read;
+					if (slow) {
+						long due = start + (long) (received / rate * 1e9);
+						long wait = (due - System.nanoTime()) / 1000000;
+						if (wait > 0 && !TailServer.sleep(wait))
+							break;
+					}
+				}
+			} catch (IOException e) {
+				if (running)
+					error = e;
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package tail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// request parsing on a persistent connection and the small helpers every request goes through
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParseBenchmark {
+
+	private static final byte[] HEAD = ("GET /stream/cam1.flv?t=90 HTTP/1.1\r\n" + "Host: localhost:8081\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+			+ "Accept: */*\r\n" + "Range: bytes=1048576-\r\n" + "Connection: keep-alive\r\n\r\n").getBytes(Charset
+			.forName("ISO-8859-1"));
+	private static final File FILE = new File("recording.flv");
+
+	private ByteBuffer buffer;
+	private HttpRequestParser parser;
+	private final HttpRequest request = new HttpRequest();
+	private long bytes = 0;
+
+	@State(Scope.Thread)
+	public static class Position {
+		@Param({ "123456789", "1.5G", "250mib", "99.5%", "640k" })
+		public String value;
+	}
+
+	// a client that sends the next request as soon as the last one was read
+	private static class Requests implements ReadableByteChannel {
+		private int offset = 0;
+
+		@Override
+		public int read(ByteBuffer dst) {
+			int n = Math.min(dst.remaining(), HEAD.length - offset);
+			dst.put(HEAD, offset, n);
+			offset = (offset + n) % HEAD.length;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	@Setup
+	public void setUp() {
+		// one parser and pooled buffer for the whole connection, like ServerThread
+		buffer = BufferPool.acquire(HttpRequestParser.MAX_HEAD_SIZE);
+		parser = new HttpRequestParser(new Requests(), buffer);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BufferPool.release(buffer);
+	}
+
+	@Benchmark
+	public void request(Blackhole blackhole) throws IOException {
+		parser.parse(request);
+		blackhole.consume(request.getPath());
+		blackhole.consume(request.getQuery());
+		blackhole.consume(request.getRange());
+		blackhole.consume(request.getUserAgent());
+		blackhole.consume(request.isKeepAlive());
+	}
+
+	@Benchmark
+	public long interpretPosition(Position position) {
+		return ServerThread.interpretPosition(position.value, FILE);
+	}
+
+	@Benchmark
+	public String formatBytes() {
+		bytes += 7919L * 1021L;
+		return TailServer.formatBytesHumanReadable(bytes);
+	}
+}
@@ -0,0 +1,126 @@
+package tail;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Tail's copy and transfer paths streaming a finished recording into a loopback socket, the viewer end is
+// drained by a thread. The read mode is fixed when TailServer is loaded, so every mode has its own forks.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StreamBenchmark {
+
+	@Param("16777216")
+	public long size;
+
+	private File file;
+	private ServerSocketChannel server;
+	private SocketChannel viewer;
+	private Socket socket;
+	private OutputStream stream;
+
+	@Setup
+	public void setUp() throws IOException {
+		Fixtures.silence();
+		// written an hour ago as far as the monitor can tell, so it is finished as soon as it is found
+		file = new File(Fixtures.recordingDirectory(), "recording.flv");
+		Fixtures.writeFile(file, size);
+		file.setLastModified(System.currentTimeMillis() - 3600 * 1000L);
+		Fixtures.awaitFinished(file);
+
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		viewer = SocketChannel.open(server.socket().getLocalSocketAddress());
+		socket = server.accept().socket();
+		stream = new BufferedOutputStream(socket.getOutputStream());
+		Thread sink = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+				try {
+					while (viewer.read(buffer) >= 0)
+						buffer.clear();
+				} catch (IOException e) {}
+			}
+		}, "Sink");
+		sink.setDaemon(true);
+		sink.start();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		socket.close();
+		viewer.close();
+		server.close();
+		file.delete();
+	}
+
+	// Tail.run(): what /stream and / do once the headers are out
+	private long tail() {
+		Client client = new ClientStats();
+		new Tail(socket, stream, client).run(file, 0);
+		return client.getBytesSent();
+	}
+
+	// Tail.send(): ranges of finished files
+	private long send() throws IOException {
+		Client client = new ClientStats();
+		new Tail(socket, stream, client).send(file, 0, size);
+		return client.getBytesSent();
+	}
+
+	@Benchmark
+	@Fork(value = 2, jvmArgsAppend = "-Dtail.read=copy")
+	public long tailCopy() {
+		return tail();
+	}
+
+	@Benchmark
+	@Fork(value = 2, jvmArgsAppend = "-Dtail.read=transfer")
+	public long tailTransfer() {
+		return tail();
+	}
+
+	@Benchmark
+	@Fork(value = 2, jvmArgsAppend = { "-Dtail.read=copy", "-Dtail.mapped.threshold=0",
+			"-Dtail.mapped.window=4194304" })
+	public long tailMapped() {
+		return tail();
+	}
+
+	@Benchmark
+	@Fork(value = 2, jvmArgsAppend = "-Dtail.read=copy")
+	public long sendCopy() throws IOException {
+		return send();
+	}
+
+	@Benchmark
+	@Fork(value = 2, jvmArgsAppend = "-Dtail.read=transfer")
+	public long sendTransfer() throws IOException {
+		return send();
+	}
+}
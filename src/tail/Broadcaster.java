@@ -0,0 +1,265 @@
+package tail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class Broadcaster implements Runnable {
+
+	static final int MISSED = -2;
+
+	// by absolute path
+	private static final Map<String, Broadcaster> broadcasters = new HashMap<String, Broadcaster>();
+	// not a monitor: release() takes the lock of the broadcaster while holding it
+	private static final ReentrantLock broadcastersLock = new ReentrantLock();
+
+	private final File file;
+	private final byte[] ring;
+	private long base;
+	private long end;
+	private int references;
+	private boolean closed;
+	// guards the ring, viewers wait for appends without pinning a carrier if they run on virtual threads
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appended = lock.newCondition();
+
+	private Broadcaster(File file, int capacity) {
+		this.file = file;
+		this.ring = new byte[capacity];
+		this.base = Math.max(0, file.length() - capacity);
+		this.end = base;
+	}
+
+	public static Broadcaster acquire(File file) {
+		broadcastersLock.lock();
+		try {
+			final String name = file.getName();
+			final String path = file.getAbsolutePath();
+			Broadcaster broadcaster = broadcasters.get(path);
+			if (broadcaster == null) {
+				broadcaster = new Broadcaster(file, TailServer.BROADCAST_BUFFER_SIZE);
+				broadcasters.put(path, broadcaster);
+				Thread thread = new Thread(broadcaster, "Broadcaster " + name);
+				thread.setDaemon(true);
+				thread.start();
+				System.out.println("[#] Broadcasting " + name + " (buffer = "
+						+ TailServer.formatBytesHumanReadable(broadcaster.ring.length) + ")");
+			}
+			broadcaster.references++;
+			return broadcaster;
+		} finally {
+			broadcastersLock.unlock();
+		}
+	}
+
+	public void release() {
+		broadcastersLock.lock();
+		try {
+			if (--references == 0) {
+				broadcasters.remove(file.getAbsolutePath());
+				lock.lock();
+				try {
+					closed = true;
+					appended.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				System.out.println("[#] Broadcast finished: " + file.getName());
+			}
+		} finally {
+			broadcastersLock.unlock();
+		}
+	}
+
+	public int read(long offset, ByteBuffer buffer) {
+		lock.lock();
+		try {
+			if (offset < start())
+				return MISSED;
+			if (offset >= end)
+				return 0;
+			int n = (int) Math.min(buffer.remaining(), end - offset);
+			int index = (int) (offset % ring.length);
+			int first = Math.min(n, ring.length - index);
+			buffer.put(ring, index, first);
+			if (n > first)
+				buffer.put(ring, 0, n - first);
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean contains(long offset) {
+		lock.lock();
+		try {
+			return offset >= start() + ring.length / 4 && offset <= end;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean await(long offset, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		lock.lock();
+		try {
+			while (end <= offset && !closed && !TailDirectory.isFileNotGrowingSince(file)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				appended.await(remaining, TimeUnit.MILLISECONDS);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private long start() {
+		return Math.max(base, end - ring.length);
+	}
+
+	private void append(ByteBuffer buffer) {
+		lock.lock();
+		try {
+			int len = buffer.remaining();
+			int index = (int) (end % ring.length);
+			int first = Math.min(len, ring.length - index);
+			buffer.get(ring, index, first);
+			if (len > first)
+				buffer.get(ring, 0, len - first);
+			end += len;
+			appended.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private long end() {
+		lock.lock();
+		try {
+			return end;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean isClosed() {
+		lock.lock();
+		try {
+			return closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+		ReadableByteChannel input = null;
+		final ByteBuffer buffer = BufferPool.acquire(BufferPool.LARGE);
+		try {
+			input = ((FileInputStream) new ReadDirect().open(file, base)).getChannel();
+			while (!isClosed()) {
+				buffer.clear();
+				int read = input.read(buffer);
+				if (read > 0) {
+					buffer.flip();
+					append(buffer);
+				} else if (!TailDirectory.awaitGrowth(file, end(), TailServer.TAIL_WAIT_TIMEOUT)) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		try {
+			input.close();
+		} catch (Exception e1) {}
+		BufferPool.release(buffer);
+	}
+
+	public static class Cursor extends InputStream implements ReadableByteChannel {
+		private final Broadcaster broadcaster;
+		private final File file;
+		private long position;
+		private FileChannel direct;
+		private boolean closed;
+
+		public Cursor(Broadcaster broadcaster, File file, long pos) {
+			this.broadcaster = broadcaster;
+			this.file = file;
+			this.position = pos;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return read(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (direct == null) {
+				int read = broadcaster.read(position, dst);
+				if (read > 0) {
+					position += read;
+					return read;
+				} else if (read == 0) {
+					return -1;
+				}
+				System.out.println("[#] Client fell out of the broadcast buffer, reading " + file.getName()
+						+ " directly");
+				direct = new ReadChannel().openChannel(file, position);
+			}
+			int read = direct.read(dst);
+			if (read > 0)
+				position += read;
+			if (broadcaster.contains(position)) {
+				direct.close();
+				direct = null;
+				if (read <= 0)
+					return read(dst);
+			}
+			return read;
+		}
+
+		public boolean await(long timeout) {
+			if (direct != null)
+				return TailDirectory.awaitGrowth(file, position, timeout);
+			else
+				return broadcaster.await(position, timeout);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !closed;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			if (direct != null)
+				direct.close();
+			broadcaster.release();
+		}
+	}
+}
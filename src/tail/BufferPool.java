@@ -0,0 +1,132 @@
+package tail;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// direct buffers shared by the read and write paths, in a few size classes and bounded in total
+class BufferPool {
+
+	static final int SMALL = 8 * 1024;
+	static final int MEDIUM = 32 * 1024;
+	static final int LARGE = 256 * 1024;
+
+	private static final int[] SIZES = { SMALL, MEDIUM, LARGE };
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final Queue<ByteBuffer>[] free = new Queue[SIZES.length];
+	static {
+		for (int i = 0; i < SIZES.length; i++)
+			free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	// direct memory held by the pool, in use or not
+	private static final AtomicLong allocated = new AtomicLong();
+	private static final AtomicLong inUse = new AtomicLong();
+	// buffers handed out from the heap because the pool was exhausted
+	static final AtomicLong misses = new AtomicLong();
+	static final AtomicLong leaks = new AtomicLong();
+
+	// debug mode hands out views and remembers where they were taken, a view that gets collected
+	// without being released is a leak
+	private static final Set<Lease> leases = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+	private static final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+	private static class Lease extends WeakReference<ByteBuffer> {
+		final ByteBuffer buffer;
+		final Throwable acquired = new Throwable("Buffer acquired here");
+
+		Lease(ByteBuffer view, ByteBuffer buffer) {
+			super(view, collected);
+			this.buffer = buffer;
+		}
+	}
+
+	// returns a cleared buffer of at least the given size, release it when done
+	public static ByteBuffer acquire(int size) {
+		int c = sizeClass(size);
+		if (c < 0) {
+			misses.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+		ByteBuffer buffer = free[c].poll();
+		if (buffer == null) {
+			if (allocated.addAndGet(SIZES[c]) > TailServer.BUFFER_POOL_SIZE) {
+				allocated.addAndGet(-SIZES[c]);
+				misses.incrementAndGet();
+				return ByteBuffer.allocate(SIZES[c]);
+			}
+			buffer = ByteBuffer.allocateDirect(SIZES[c]);
+		}
+		inUse.addAndGet(SIZES[c]);
+		buffer.clear();
+		if (!TailServer.BUFFER_POOL_DEBUG)
+			return buffer;
+
+		expunge();
+		ByteBuffer view = buffer.duplicate();
+		leases.add(new Lease(view, buffer));
+		return view;
+	}
+
+	public static void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect())
+			return;
+		if (TailServer.BUFFER_POOL_DEBUG) {
+			expunge();
+			Lease lease = null;
+			for (Lease l : leases) {
+				if (l.get() == buffer) {
+					lease = l;
+					break;
+				}
+			}
+			if (lease == null || !leases.remove(lease)) {
+				System.out.println("[-] Buffer released twice or not taken from the pool");
+				new Throwable("Buffer released here").printStackTrace(System.out);
+				return;
+			}
+			lease.clear();
+			buffer = lease.buffer;
+		}
+		int c = sizeClass(buffer.capacity());
+		inUse.addAndGet(-SIZES[c]);
+		free[c].offer(buffer);
+	}
+
+	// takes back the buffers of collected views
+	private static void expunge() {
+		for (Lease lease = (Lease) collected.poll(); lease != null; lease = (Lease) collected.poll()) {
+			if (!leases.remove(lease))
+				continue;
+			leaks.incrementAndGet();
+			System.out.println("[-] Buffer leak: " + lease.buffer.capacity() + " bytes were never released");
+			lease.acquired.printStackTrace(System.out);
+			inUse.addAndGet(-lease.buffer.capacity());
+			free[sizeClass(lease.buffer.capacity())].offer(lease.buffer);
+		}
+	}
+
+	private static int sizeClass(int size) {
+		for (int i = 0; i < SIZES.length; i++) {
+			if (size <= SIZES[i])
+				return i;
+		}
+		return -1;
+	}
+
+	public static long getAllocated() {
+		return allocated.get();
+	}
+
+	public static long getInUse() {
+		if (TailServer.BUFFER_POOL_DEBUG)
+			expunge();
+		return inUse.get();
+	}
+}
@@ -0,0 +1,54 @@
+package tail;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+class ChunkedOutputStream extends FilterOutputStream {
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private boolean finished = false;
+
+	public ChunkedOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return;
+		beginChunk(len);
+		out.write(b, off, len);
+		endChunk();
+	}
+
+	// for writers that put the chunk data on the wire themselves, e.g. with transferTo
+	public void beginChunk(long len) throws IOException {
+		out.write((Long.toHexString(len) + "\r\n").getBytes("US-ASCII"));
+	}
+
+	public void endChunk() throws IOException {
+		out.write(CRLF);
+	}
+
+	public void finish() throws IOException {
+		if (!finished) {
+			finished = true;
+			out.write(LAST_CHUNK);
+			out.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		super.close();
+	}
+}
@@ -10,12 +10,39 @@ public interface Client {
 
 	public void setContentLength(long size);
 
+	public void setPosition(long position);
+
 	public void setFile(File file);
 
+	public File getFile();
+
 	public void disconnect();
 
 	public String getAverageSpeed();
 
 	public String getSize();
 
+	public long getBytesSent();
+
+	public double getThroughput();
+
+	public long getLag();
+
+	public void setTokenBucket(TokenBucket bucket);
+
+	// bytes per second, 0 if the client isn't limited
+	public long getRateLimit();
+
+	public long getTokens();
+
+	// a write to a viewer of a growing file: bytes it is behind the end of the file and milliseconds since the
+	// recorder appended what was written, -1 if unknown
+	public void observeLag(long bytes, long delay);
+
+	public Histogram getLagHistogram();
+
+	public Histogram getDelayHistogram();
+
+	public String getLagSummary();
+
 }
\ No newline at end of file
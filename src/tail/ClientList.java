@@ -1,9 +1,13 @@
 package tail;
 
+import java.util.Collection;
+
 interface ClientList {
 
 	public Client newClient();
 
 	public void removeClient(Client client);
 
+	public Collection<Client> getClients();
+
 }
\ No newline at end of file
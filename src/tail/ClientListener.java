@@ -0,0 +1,9 @@
+package tail;
+
+interface ClientListener {
+
+	public void clientAdded(Client client);
+
+	public void clientRemoved(Client client);
+
+}
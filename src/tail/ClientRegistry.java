@@ -0,0 +1,40 @@
+package tail;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+class ClientRegistry implements ClientList {
+
+	private final Map<Client, Boolean> clients = new ConcurrentHashMap<Client, Boolean>();
+	private final List<ClientListener> listeners = new CopyOnWriteArrayList<ClientListener>();
+
+	@Override
+	public Client newClient() {
+		Client client = new ClientStats();
+		clients.put(client, Boolean.TRUE);
+		for (ClientListener listener : listeners)
+			listener.clientAdded(client);
+		return client;
+	}
+
+	@Override
+	public void removeClient(Client client) {
+		if (clients.remove(client) != null) {
+			for (ClientListener listener : listeners)
+				listener.clientRemoved(client);
+		}
+	}
+
+	@Override
+	public Collection<Client> getClients() {
+		return Collections.unmodifiableSet(clients.keySet());
+	}
+
+	public void addListener(ClientListener listener) {
+		listeners.add(listener);
+	}
+}
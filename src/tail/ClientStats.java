@@ -0,0 +1,167 @@
+package tail;
+
+import java.io.File;
+
+class ClientStats implements Client {
+
+	private static final long SPEED_WINDOW = 1000;
+
+	private volatile String host;
+	private volatile int port;
+	private volatile long size = 0;
+	private volatile long position = 0;
+	private volatile File file;
+	private volatile TokenBucket bucket;
+	private volatile double speed = 0;
+	private volatile long speedTime;
+	private long windowStart;
+	private long windowSize = 0;
+
+	// only filled while the client follows a growing file
+	private final Histogram lagBytes = new Histogram(Histogram.SIZE_BOUNDS, 1);
+	private final Histogram lagDelay = new Histogram(Histogram.LATENCY_BOUNDS, 1e9);
+
+	private final long startTime;
+	private volatile long stopTime = 0;
+
+	public ClientStats() {
+		startTime = System.currentTimeMillis();
+		windowStart = startTime;
+	}
+
+	public String toString() {
+		return host + ":" + port;
+	}
+
+	@Override
+	public void setRemoteHost(String host) {
+		this.host = host;
+	}
+
+	@Override
+	public void setRemotePort(int port) {
+		this.port = port;
+	}
+
+	// only called by the thread that serves the client
+	@Override
+	public void setContentLength(long size) {
+		Metrics.bytesSent.addAndGet(size - this.size);
+		this.size = size;
+		long now = System.currentTimeMillis();
+		if (now - windowStart >= SPEED_WINDOW) {
+			speed = (double) (size - windowSize) * 1000 / (now - windowStart);
+			speedTime = now;
+			windowStart = now;
+			windowSize = size;
+		}
+	}
+
+	@Override
+	public void setPosition(long position) {
+		this.position = position;
+	}
+
+	@Override
+	public void setFile(File file) {
+		this.file = file;
+	}
+
+	@Override
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void disconnect() {
+		stopTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public String getAverageSpeed() {
+		long stop = stopTime != 0 ? stopTime : System.currentTimeMillis();
+		double seconds = Math.max(1, stop - startTime) / 1000.0;
+		return TailServer.formatBytesHumanReadable(size / seconds) + "/s";
+	}
+
+	@Override
+	public String getSize() {
+		return TailServer.formatBytesHumanReadable(size);
+	}
+
+	@Override
+	public long getBytesSent() {
+		return size;
+	}
+
+	@Override
+	public double getThroughput() {
+		// a client that hasn't received anything for a while is idle
+		return System.currentTimeMillis() - speedTime > 2 * SPEED_WINDOW ? 0 : speed;
+	}
+
+	@Override
+	public long getLag() {
+		File file = this.file;
+		return file != null ? Math.max(0, file.length() - position) : 0;
+	}
+
+	@Override
+	public void setTokenBucket(TokenBucket bucket) {
+		this.bucket = bucket;
+	}
+
+	@Override
+	public long getRateLimit() {
+		TokenBucket bucket = this.bucket;
+		return bucket != null ? bucket.getRate() : 0;
+	}
+
+	@Override
+	public long getTokens() {
+		TokenBucket bucket = this.bucket;
+		return bucket != null ? bucket.getTokens() : 0;
+	}
+
+	@Override
+	public void observeLag(long bytes, long delay) {
+		lagBytes.observe(bytes);
+		if (delay >= 0)
+			lagDelay.observe(delay * 1000000L);
+	}
+
+	@Override
+	public Histogram getLagHistogram() {
+		return lagBytes;
+	}
+
+	@Override
+	public Histogram getDelayHistogram() {
+		return lagDelay;
+	}
+
+	@Override
+	public String getLagSummary() {
+		if (lagBytes.getCount() == 0)
+			return "-";
+		String summary = "p50 " + formatBytes(lagBytes.quantile(0.5)) + ", p99 "
+				+ formatBytes(lagBytes.quantile(0.99));
+		if (lagDelay.getCount() > 0)
+			summary += " / p50 " + formatDelay(lagDelay.quantile(0.5)) + ", p99 "
+					+ formatDelay(lagDelay.quantile(0.99));
+		return summary;
+	}
+
+	// quantiles are bucket bounds, so they read as "at most"
+	private static String formatBytes(long bound) {
+		if (bound == Long.MAX_VALUE)
+			return "> " + TailServer.formatBytesHumanReadable(Histogram.SIZE_BOUNDS[Histogram.SIZE_BOUNDS.length - 1]);
+		return "<= " + TailServer.formatBytesHumanReadable(bound);
+	}
+
+	private static String formatDelay(long bound) {
+		if (bound == Long.MAX_VALUE)
+			return "> " + Histogram.LATENCY_BOUNDS[Histogram.LATENCY_BOUNDS.length - 1] / 1000000 + " ms";
+		return "<= " + bound / 1000000 + " ms";
+	}
+}
@@ -0,0 +1,10 @@
+package tail;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+
+interface ConnectionEngine {
+
+	public void serve(ServerSocketChannel server, ClientList clients) throws IOException;
+
+}
@@ -0,0 +1,279 @@
+package tail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// recordings of one directory, kept up to date from file system events plus a periodic full scan;
+// the catalog file keeps them across restarts
+class DirectoryIndex {
+
+	static final FileFilter RECORDINGS = new FileFilter() {
+		public boolean accept(File file) {
+			return file.isFile() && isRecordingName(file.getName());
+		}
+	};
+
+	private static final int CATALOG_MAGIC = 0x54434154;
+	private static final int CATALOG_VERSION = 1;
+
+	static final class Entry implements Comparable<Entry> {
+		final File file;
+		final long length;
+		final long modified;
+
+		Entry(File file, long length, long modified) {
+			this.file = file;
+			this.length = length;
+			this.modified = modified;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			if (modified != other.modified)
+				return modified < other.modified ? -1 : 1;
+			return file.getName().compareTo(other.file.getName());
+		}
+	}
+
+	private final File directory;
+	// null if the index isn't persisted
+	private final File catalog;
+	// written only by the monitor thread
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentSkipListSet<Entry> byModified = new ConcurrentSkipListSet<Entry>();
+	private volatile Entry newest = null;
+
+	// names reported by the watcher, collected until the next update
+	private final Set<String> dirty = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private volatile boolean reconcile = true;
+	private long lastReconcile = 0;
+	private boolean unsaved = false;
+	private boolean saveFailed = false;
+
+	public DirectoryIndex(File directory) {
+		this(directory, null);
+	}
+
+	public DirectoryIndex(File directory, File catalog) {
+		this.directory = directory;
+		this.catalog = catalog;
+	}
+
+	static boolean isRecordingName(String name) {
+		return !name.endsWith("_") && !name.startsWith("Copy");
+	}
+
+	public void changed(String name) {
+		dirty.add(name);
+	}
+
+	public void invalidate() {
+		reconcile = true;
+	}
+
+	// returns the entries that are new or were modified since the last update
+	public List<Entry> update(boolean watching) {
+		List<Entry> changed = new ArrayList<Entry>();
+		long now = System.currentTimeMillis();
+		if (reconcile || !watching || now - lastReconcile > TailServer.DIRECTORY_RECONCILE_INTERVAL) {
+			// the saved catalog stands in for the stats of the first scan
+			Map<String, Entry> saved = lastReconcile == 0 ? load() : null;
+			reconcile = false;
+			lastReconcile = now;
+			dirty.clear();
+			scan(changed, saved);
+			if (unsaved && catalog != null)
+				save();
+		} else {
+			for (Iterator<String> i = dirty.iterator(); i.hasNext();) {
+				String name = i.next();
+				i.remove();
+				Entry entry = stat(name);
+				if (entry != null)
+					put(entry, changed);
+				else
+					remove(name);
+			}
+		}
+		return changed;
+	}
+
+	private void scan(List<Entry> changed, Map<String, Entry> saved) {
+		long start = System.nanoTime();
+		String[] files = directory.list();
+		Set<String> names = new HashSet<String>();
+		if (files != null) {
+			for (String name : files) {
+				Entry entry = saved != null ? saved.get(name) : null;
+				if (entry == null)
+					entry = stat(name);
+				if (entry != null) {
+					names.add(name);
+					put(entry, changed);
+				}
+			}
+		}
+		for (String name : entries.keySet()) {
+			if (!names.contains(name))
+				remove(name);
+		}
+		Metrics.directoryScanDuration.observe(System.nanoTime() - start);
+	}
+
+	// type, size and modification time with a single stat, null if the name isn't a recording (any more)
+	private Entry stat(String name) {
+		if (!isRecordingName(name))
+			return null;
+		File file = new File(directory, name);
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			if (!attributes.isRegularFile())
+				return null;
+			return new Entry(file, attributes.size(), attributes.lastModifiedTime().toMillis());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// recordings that were still changing when the catalog was saved are left out, they get a stat
+	private Map<String, Entry> load() {
+		if (catalog == null || !catalog.isFile())
+			return null;
+		long start = System.currentTimeMillis();
+		Map<String, Entry> saved = new HashMap<String, Entry>();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(catalog)));
+			if (in.readInt() != CATALOG_MAGIC || in.readInt() != CATALOG_VERSION)
+				throw new IOException("unknown format");
+			long settled = in.readLong() - TailServer.DIRECTORY_RECONCILE_INTERVAL - TailServer.FILE_CHANGE_TIMEOUT;
+			for (int count = in.readInt(); count > 0; count--) {
+				String name = in.readUTF();
+				long length = in.readLong();
+				long modified = in.readLong();
+				if (modified < settled)
+					saved.put(name, new Entry(new File(directory, name), length, modified));
+			}
+			System.out.println("[#] Catalog of " + directory + ": " + saved.size() + " recordings ("
+					+ (System.currentTimeMillis() - start) + " ms)");
+			return saved;
+		} catch (IOException e) {
+			System.out.println("[-] Ignoring catalog " + catalog + ": " + e.getMessage());
+			return null;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	// written next to the catalog and moved over it, so a crash never leaves half a catalog
+	private void save() {
+		File temp = new File(catalog.getPath() + ".tmp");
+		try {
+			catalog.getParentFile().mkdirs();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				List<Entry> all = new ArrayList<Entry>(entries.values());
+				out.writeInt(CATALOG_MAGIC);
+				out.writeInt(CATALOG_VERSION);
+				out.writeLong(System.currentTimeMillis());
+				out.writeInt(all.size());
+				for (Entry entry : all) {
+					out.writeUTF(entry.file.getName());
+					out.writeLong(entry.length);
+					out.writeLong(entry.modified);
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), catalog.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			unsaved = false;
+		} catch (IOException e) {
+			temp.delete();
+			if (!saveFailed)
+				System.out.println("[-] Could not save catalog " + catalog + ": " + e.getMessage());
+			saveFailed = true;
+		}
+	}
+
+	private void put(Entry entry, List<Entry> changed) {
+		Entry old = entries.get(entry.file.getName());
+		if (old != null && old.modified == entry.modified && old.length == entry.length)
+			return;
+		unsaved = true;
+		entries.put(entry.file.getName(), entry);
+		if (old != null)
+			byModified.remove(old);
+		byModified.add(entry);
+		if (newest == null || entry.compareTo(newest) >= 0)
+			newest = entry;
+		else if (old == newest)
+			newest = byModified.last();
+		changed.add(entry);
+	}
+
+	private void remove(String name) {
+		Entry old = entries.remove(name);
+		if (old != null) {
+			unsaved = true;
+			byModified.remove(old);
+			if (old == newest)
+				newest = byModified.isEmpty() ? null : byModified.last();
+		}
+	}
+
+	public void clear() {
+		entries.clear();
+		byModified.clear();
+		newest = null;
+		reconcile = true;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public File getNewest() {
+		Entry entry = newest;
+		return entry != null ? entry.file : null;
+	}
+
+	Entry getNewestEntry() {
+		return newest;
+	}
+
+	public File get(String name) {
+		Entry entry = entries.get(name);
+		return entry != null ? entry.file : null;
+	}
+
+	public List<String> getNames() {
+		List<String> names = new ArrayList<String>(entries.keySet());
+		Collections.sort(names);
+		return names;
+	}
+}
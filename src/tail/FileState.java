@@ -0,0 +1,24 @@
+package tail;
+
+// immutable, replaced as a whole whenever the monitor learns something new about a file
+final class FileState {
+
+	final long size;
+	// when the size last changed
+	final long sizeTimestamp;
+	final boolean growing;
+
+	FileState(long size, long sizeTimestamp, boolean growing) {
+		this.size = size;
+		this.sizeTimestamp = sizeTimestamp;
+		this.growing = growing;
+	}
+
+	FileState withSize(long size, long sizeTimestamp) {
+		return new FileState(size, sizeTimestamp, growing);
+	}
+
+	FileState withGrowing(boolean growing) {
+		return new FileState(size, sizeTimestamp, growing);
+	}
+}
@@ -0,0 +1,356 @@
+package tail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class FlvIndex {
+
+	private static final int FLV_HEADER_SIZE = 9 + 4;
+	private static final int TAG_HEADER_SIZE = 11;
+	private static final int TAG_AUDIO = 8;
+	private static final int TAG_VIDEO = 9;
+	private static final int TAG_SCRIPT = 18;
+
+	// by absolute path and in access order, the least recently used sealed indexes are dropped and
+	// reopened from their sidecar
+	private static final Map<String, FlvIndex> indexes = new LinkedHashMap<String, FlvIndex>(16, 0.75f, true);
+
+	private final File file;
+	private boolean valid = true;
+	private long parsed = 0;
+	private byte[] header;
+	private byte[] metadata;
+	private byte[] videoConfig;
+	private byte[] audioConfig;
+	private long[] offsets = new long[64];
+	private long[] timestamps = new long[64];
+	private int keyframes = 0;
+	private long lastTimestamp = 0;
+
+	// the latest group of pictures of a growing file, from its keyframe up to the last complete tag
+	private byte[] gop = null;
+	private int gopLength = 0;
+	private long gopStart = -1;
+
+	// pooled, only held while parsing
+	private ByteBuffer window = null;
+	private long windowStart = -1;
+
+	// finished recordings are looked up in their sidecar index instead of the arrays
+	private volatile SidecarIndex sidecar = null;
+	private boolean sidecarFailed = false;
+
+	// what a viewer joining at the live edge gets from memory, and where the file takes over
+	static class LiveStart {
+		final byte[] data;
+		final long keyframe;
+		final long end;
+
+		LiveStart(byte[] data, long keyframe, long end) {
+			this.data = data;
+			this.keyframe = keyframe;
+			this.end = end;
+		}
+	}
+
+	private FlvIndex(File file) {
+		this.file = file;
+	}
+
+	public static FlvIndex forFile(File file) {
+		synchronized (indexes) {
+			final String path = file.getAbsolutePath();
+			FlvIndex index = indexes.get(path);
+			if (index == null) {
+				index = new FlvIndex(file);
+				indexes.put(path, index);
+				evict();
+			}
+			return index;
+		}
+	}
+
+	// indexes of growing files hold the parse state and stay
+	private static void evict() {
+		int excess = indexes.size() - TailServer.INDEX_CACHE_SIZE;
+		for (Iterator<FlvIndex> i = indexes.values().iterator(); excess > 0 && i.hasNext();) {
+			if (i.next().sidecar != null) {
+				i.remove();
+				excess--;
+			}
+		}
+	}
+
+	public static void reset() {
+		synchronized (indexes) {
+			indexes.clear();
+		}
+	}
+
+	public synchronized boolean isValid() {
+		return valid && header != null;
+	}
+
+	public synchronized void update() {
+		boolean finished = !TailDirectory.isFileGrowing(file);
+		if (sidecar != null) {
+			if (finished)
+				return;
+			// written to again, back to parsing it
+			sidecar = null;
+			valid = true;
+			parsed = 0;
+			header = metadata = videoConfig = audioConfig = null;
+			keyframes = 0;
+			lastTimestamp = 0;
+		}
+		if (!valid)
+			return;
+		if (finished && parsed == 0 && open(SidecarIndex.open(file)))
+			return;
+		parse();
+		if (finished)
+			seal();
+	}
+
+	private void parse() {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			window = BufferPool.acquire(BufferPool.MEDIUM);
+			windowStart = -1;
+
+			if (header == null) {
+				if (length < FLV_HEADER_SIZE)
+					return;
+				ByteBuffer b = read(channel, 0, FLV_HEADER_SIZE);
+				if (b.get(0) != 'F' || b.get(1) != 'L' || b.get(2) != 'V') {
+					valid = false;
+					return;
+				}
+				int dataOffset = b.getInt(5);
+				header = copy(channel, 0, FLV_HEADER_SIZE);
+				parsed = dataOffset + 4;
+			}
+
+			while (length - parsed >= TAG_HEADER_SIZE + 4) {
+				ByteBuffer b = read(channel, parsed, TAG_HEADER_SIZE + 2);
+				int type = b.get(0) & 0x1f;
+				int dataSize = ((b.get(1) & 0xff) << 16) | ((b.get(2) & 0xff) << 8) | (b.get(3) & 0xff);
+				long timestamp = ((b.get(7) & 0xffL) << 24) | ((b.get(4) & 0xff) << 16) | ((b.get(5) & 0xff) << 8)
+						| (b.get(6) & 0xff);
+				long tagSize = TAG_HEADER_SIZE + dataSize + 4;
+				if (parsed + tagSize > length)
+					break;
+
+				int first = dataSize > 0 ? b.get(TAG_HEADER_SIZE) & 0xff : 0;
+				int second = dataSize > 1 ? b.get(TAG_HEADER_SIZE + 1) & 0xff : -1;
+				if (type == TAG_VIDEO) {
+					boolean avc = (first & 0x0f) == 7;
+					if (avc && second == 0) {
+						videoConfig = copy(channel, parsed, (int) tagSize);
+					} else if ((first >> 4) == 1 && !(avc && second == 2)) {
+						addKeyframe(parsed, timestamp);
+					}
+				} else if (type == TAG_AUDIO) {
+					if ((first >> 4) == 10 && second == 0)
+						audioConfig = copy(channel, parsed, (int) tagSize);
+				} else if (type == TAG_SCRIPT && metadata == null) {
+					metadata = copy(channel, parsed, (int) tagSize);
+				}
+				if (type == TAG_AUDIO || type == TAG_VIDEO)
+					lastTimestamp = Math.max(lastTimestamp, timestamp);
+				parsed += tagSize;
+			}
+			updateGop(channel);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (IOException e) {}
+			BufferPool.release(window);
+			window = null;
+		}
+	}
+
+	private void updateGop(FileChannel channel) throws IOException {
+		long keyframe = keyframes > 0 ? offsets[keyframes - 1] : -1;
+		if (keyframe < 0 || !TailDirectory.isFileGrowing(file)) {
+			gop = null;
+			gopStart = -1;
+			return;
+		}
+		if (keyframe != gopStart) {
+			gopStart = keyframe;
+			gopLength = 0;
+			if (gop == null)
+				gop = new byte[65536];
+		} else if (gop == null) {
+			// this one didn't fit, wait for the next keyframe
+			return;
+		}
+		long length = parsed - gopStart;
+		if (length > TailServer.GOP_CACHE_SIZE) {
+			gop = null;
+			return;
+		}
+		if (length > gop.length)
+			gop = Arrays.copyOf(gop, (int) Math.min(TailServer.GOP_CACHE_SIZE, Math.max(length, 2L * gop.length)));
+		ByteBuffer b = ByteBuffer.wrap(gop, gopLength, (int) length - gopLength);
+		while (b.hasRemaining() && channel.read(b, gopStart + b.position()) > 0) {}
+		gopLength = b.position();
+	}
+
+	// the recording stopped growing: the index goes into its sidecar once and is used from there
+	private void seal() {
+		if (!isValid() || sidecarFailed)
+			return;
+		try {
+			SidecarIndex.write(file, file.length(), file.lastModified(), lastTimestamp, new byte[][] { header,
+					metadata, videoConfig, audioConfig }, offsets, timestamps, keyframes);
+			System.out.println("[#] Keyframe index written: " + file.getName() + " (" + keyframes + " keyframes)");
+		} catch (IOException e) {
+			System.out.println("[-] Could not write keyframe index of " + file.getName() + ": " + e.getMessage());
+			sidecarFailed = true;
+			return;
+		}
+		open(SidecarIndex.open(file));
+	}
+
+	private boolean open(SidecarIndex index) {
+		if (index == null)
+			return false;
+		sidecar = index;
+		header = index.prefix[0];
+		metadata = index.prefix[1];
+		videoConfig = index.prefix[2];
+		audioConfig = index.prefix[3];
+		lastTimestamp = index.duration;
+		offsets = new long[64];
+		timestamps = new long[64];
+		keyframes = 0;
+		gop = null;
+		gopStart = -1;
+		return true;
+	}
+
+	// null if there is no keyframe to start at
+	public synchronized LiveStart getLiveStart() {
+		if (!isValid() || count() == 0)
+			return null;
+		byte[] prefix = getPrefix();
+		long keyframe = offsetAt(count() - 1);
+		if (gop == null || gopStart != keyframe)
+			return new LiveStart(prefix, keyframe, keyframe);
+		byte[] data = Arrays.copyOf(prefix, prefix.length + gopLength);
+		System.arraycopy(gop, 0, data, prefix.length, gopLength);
+		return new LiveStart(data, keyframe, keyframe + gopLength);
+	}
+
+	private void addKeyframe(long offset, long timestamp) {
+		if (keyframes == offsets.length) {
+			offsets = Arrays.copyOf(offsets, keyframes * 2);
+			timestamps = Arrays.copyOf(timestamps, keyframes * 2);
+		}
+		offsets[keyframes] = offset;
+		timestamps[keyframes] = timestamp;
+		keyframes++;
+	}
+
+	private int count() {
+		return sidecar != null ? sidecar.keyframes : keyframes;
+	}
+
+	private long offsetAt(int i) {
+		return sidecar != null ? sidecar.offset(i) : offsets[i];
+	}
+
+	private long timestampAt(int i) {
+		return sidecar != null ? sidecar.timestamp(i) : timestamps[i];
+	}
+
+	// first keyframe at or after the offset (or the time), count() if there is none
+	private int lowerBound(long value, boolean time) {
+		int low = 0;
+		int high = count();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if ((time ? timestampAt(middle) : offsetAt(middle)) < value)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	public synchronized long keyframeAtOrBefore(long offset) {
+		int i = lowerBound(offset, false);
+		if (i == count() || offsetAt(i) != offset)
+			i--;
+		return i >= 0 ? offsetAt(i) : -1;
+	}
+
+	public synchronized long keyframeAtOrAfter(long offset) {
+		int i = lowerBound(offset, false);
+		return i < count() ? offsetAt(i) : -1;
+	}
+
+	public synchronized long keyframeAtTime(long millis) {
+		int i = lowerBound(millis, true);
+		if (i == count() || timestampAt(i) != millis)
+			i--;
+		if (i < 0)
+			i = 0;
+		return count() > 0 ? offsetAt(i) : -1;
+	}
+
+	public synchronized long getDuration() {
+		return lastTimestamp;
+	}
+
+	public synchronized byte[] getPrefix() {
+		byte[][] parts = { header, metadata, videoConfig, audioConfig };
+		int length = 0;
+		for (byte[] part : parts)
+			if (part != null)
+				length += part.length;
+		byte[] prefix = new byte[length];
+		int pos = 0;
+		for (byte[] part : parts) {
+			if (part != null) {
+				System.arraycopy(part, 0, prefix, pos, part.length);
+				pos += part.length;
+			}
+		}
+		return prefix;
+	}
+
+	private ByteBuffer read(FileChannel channel, long pos, int len) throws IOException {
+		if (windowStart < 0 || pos < windowStart || pos + len > windowStart + window.limit()) {
+			window.clear();
+			while (window.hasRemaining() && channel.read(window, pos + window.position()) > 0) {}
+			window.flip();
+			windowStart = pos;
+		}
+		ByteBuffer b = window.duplicate();
+		b.position((int) (pos - windowStart));
+		return b.slice();
+	}
+
+	private static byte[] copy(FileChannel channel, long pos, int len) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(len);
+		while (b.hasRemaining() && channel.read(b, pos + b.position()) > 0) {}
+		return b.array();
+	}
+}
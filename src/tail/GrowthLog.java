@@ -0,0 +1,75 @@
+package tail;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+// lengths a growing file was seen at and when it was last modified then, to tell how long a byte took from
+// the recorder to a viewer
+class GrowthLog {
+
+	private static final int SAMPLES = 1024;
+
+	// by absolute path, the same name can be a recording in more than one directory
+	private static final Map<String, GrowthLog> logs = new HashMap<String, GrowthLog>();
+
+	private final long[] lengths = new long[SAMPLES];
+	private final long[] times = new long[SAMPLES];
+	// samples recorded so far, the last SAMPLES of them are kept
+	private long count = 0;
+
+	public static GrowthLog forFile(File file) {
+		synchronized (logs) {
+			final String path = file.getAbsolutePath();
+			GrowthLog log = logs.get(path);
+			if (log == null) {
+				log = new GrowthLog();
+				logs.put(path, log);
+			}
+			return log;
+		}
+	}
+
+	public static void forget(File file) {
+		synchronized (logs) {
+			logs.remove(file.getAbsolutePath());
+		}
+	}
+
+	public static void reset() {
+		synchronized (logs) {
+			logs.clear();
+		}
+	}
+
+	// the file had reached the length when it was last modified
+	public synchronized void record(long length, long modified) {
+		if (count > 0 && length <= lengths[(int) ((count - 1) % SAMPLES)])
+			return;
+		lengths[(int) (count % SAMPLES)] = length;
+		times[(int) (count % SAMPLES)] = modified;
+		count++;
+	}
+
+	// newest length seen, 0 if none
+	public synchronized long getLength() {
+		return count > 0 ? lengths[(int) ((count - 1) % SAMPLES)] : 0;
+	}
+
+	// latest time the bytes before the offset were appended, the oldest sample for offsets that fell out of
+	// the log and -1 for offsets beyond the newest sample
+	public synchronized long appendedBy(long offset) {
+		if (count == 0 || offset > lengths[(int) ((count - 1) % SAMPLES)])
+			return -1;
+		long low = Math.max(0, count - SAMPLES);
+		long high = count - 1;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (lengths[(int) (middle % SAMPLES)] >= offset)
+				high = middle;
+			else
+				low = middle + 1;
+		}
+		return times[(int) (low % SAMPLES)];
+	}
+}
@@ -0,0 +1,193 @@
+package tail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class GrowthNotifier implements Runnable {
+
+	// by absolute path, the same name can be a recording in more than one directory
+	private final Map<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+	// taken before the lock of a watch; a monitor here would pin a virtual thread that then waits for that lock
+	private final ReentrantLock watchesLock = new ReentrantLock();
+	private File[] directories;
+	private DirectoryIndex[] indexes;
+	// the index of the directory each watch key belongs to, only used by the notifier thread
+	private final Map<WatchKey, DirectoryIndex> keys = new HashMap<WatchKey, DirectoryIndex>();
+	private final Set<DirectoryIndex> watched = Collections
+			.newSetFromMap(new ConcurrentHashMap<DirectoryIndex, Boolean>());
+	private volatile boolean eventsWork = false;
+
+	// a lock instead of the monitor: a virtual thread waiting on a monitor would pin its carrier thread
+	private static class Watch {
+		final File file;
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition grown = lock.newCondition();
+		long length;
+		int waiters;
+
+		Watch(File file) {
+			this.file = file;
+			this.length = file.length();
+		}
+	}
+
+	public void start(File[] directories, DirectoryIndex[] indexes) {
+		this.directories = directories;
+		this.indexes = indexes;
+		Thread thread = new Thread(this, "GrowthNotifier");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public boolean await(File file, long length, long timeout) {
+		Watch watch = acquire(file);
+		watch.lock.lock();
+		try {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (file.length() <= length && !TailDirectory.isFileNotGrowingSince(file)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				watch.grown.await(remaining, TimeUnit.MILLISECONDS);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			watch.waiters--;
+			watch.lock.unlock();
+		}
+	}
+
+	public void signal(File file) {
+		Watch watch = watches.get(file.getAbsolutePath());
+		if (watch != null) {
+			watch.lock.lock();
+			try {
+				watch.length = watch.file.length();
+				GrowthLog.forFile(watch.file).record(watch.length, watch.file.lastModified());
+				watch.grown.signalAll();
+			} finally {
+				watch.lock.unlock();
+			}
+		}
+	}
+
+	// whether the directory index can rely on events between its full scans
+	public boolean isWatching(DirectoryIndex index) {
+		return watched.contains(index);
+	}
+
+	private Watch acquire(File file) {
+		final String path = file.getAbsolutePath();
+		watchesLock.lock();
+		try {
+			Watch watch = watches.get(path);
+			if (watch == null) {
+				watch = new Watch(file);
+				watches.put(path, watch);
+			}
+			watch.lock.lock();
+			watch.waiters++;
+			watch.lock.unlock();
+			return watch;
+		} finally {
+			watchesLock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+		WatchService service = null;
+		for (int i = 0; i < directories.length; i++) {
+			try {
+				if (service == null)
+					service = directories[i].toPath().getFileSystem().newWatchService();
+				keys.put(directories[i].toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), indexes[i]);
+				watched.add(indexes[i]);
+				System.out.println("[#] Watching " + directories[i] + " for changes");
+			} catch (IOException e) {
+				System.out.println("[#] No file system events for " + directories[i] + ", checking file sizes instead");
+			} catch (UnsupportedOperationException e) {}
+		}
+		if (keys.isEmpty())
+			service = null;
+
+		while (true) {
+			// size checks for filesystems that don't emit modify events (network shares etc.)
+			long interval = eventsWork ? TailServer.POLL_SAFETY_INTERVAL : TailServer.POLL_INTERVAL;
+			if (service != null) {
+				try {
+					WatchKey key = service.poll(interval, TimeUnit.MILLISECONDS);
+					DirectoryIndex index = key != null ? keys.get(key) : null;
+					if (index != null) {
+						for (WatchEvent<?> event : key.pollEvents()) {
+							if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+								index.invalidate();
+							} else if (event.context() instanceof Path) {
+								String name = ((Path) event.context()).getFileName().toString();
+								File file = new File(index.getDirectory(), name);
+								index.changed(name);
+								if (watches.containsKey(file.getAbsolutePath()))
+									eventsWork = true;
+								signal(file);
+							}
+						}
+						if (!key.reset()) {
+							keys.remove(key);
+							watched.remove(index);
+						}
+					}
+				} catch (InterruptedException e) {
+					break;
+				} catch (ClosedWatchServiceException e) {
+					keys.clear();
+					watched.clear();
+				}
+				if (keys.isEmpty())
+					service = null;
+			} else if (!TailServer.sleep(interval)) {
+				break;
+			}
+			checkSizes();
+		}
+	}
+
+	private void checkSizes() {
+		watchesLock.lock();
+		try {
+			for (Watch watch : watches.values().toArray(new Watch[0])) {
+				watch.lock.lock();
+				try {
+					if (watch.waiters == 0) {
+						watches.remove(watch.file.getAbsolutePath());
+					} else if (watch.file.length() != watch.length) {
+						watch.length = watch.file.length();
+						GrowthLog.forFile(watch.file).record(watch.length, watch.file.lastModified());
+						watch.grown.signalAll();
+					}
+				} finally {
+					watch.lock.unlock();
+				}
+			}
+		} finally {
+			watchesLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package tail;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class Histogram {
+
+	static final long[] LATENCY_BOUNDS = { 1000000L, 5000000L, 10000000L, 25000000L, 50000000L, 100000000L,
+			250000000L, 500000000L, 1000000000L, 2500000000L, 5000000000L, 10000000000L };
+	static final long[] SIZE_BOUNDS = { 16384L, 65536L, 262144L, 1048576L, 4194304L, 16777216L, 67108864L,
+			268435456L };
+
+	private final long[] bounds;
+	private final double scale;
+	private final AtomicLongArray buckets;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+
+	// values are recorded in the unit of the bounds and exported divided by scale
+	public Histogram(long[] bounds, double scale) {
+		this.bounds = bounds;
+		this.scale = scale;
+		this.buckets = new AtomicLongArray(bounds.length + 1);
+	}
+
+	public void observe(long value) {
+		int i = 0;
+		while (i < bounds.length && value > bounds[i])
+			++i;
+		buckets.incrementAndGet(i);
+		count.incrementAndGet();
+		sum.addAndGet(value);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	// upper bound of the bucket the quantile falls into, in the unit of the bounds; Long.MAX_VALUE if it is
+	// above the last bound and 0 without observations
+	public long quantile(double q) {
+		long total = count.get();
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(q * total);
+		long cumulative = 0;
+		for (int i = 0; i < bounds.length; ++i) {
+			cumulative += buckets.get(i);
+			if (cumulative >= rank)
+				return bounds[i];
+		}
+		return Long.MAX_VALUE;
+	}
+
+	public void write(StringBuilder out, String name, String labels) {
+		String prefix = labels.isEmpty() ? "" : labels + ",";
+		long cumulative = 0;
+		for (int i = 0; i < bounds.length; ++i) {
+			cumulative += buckets.get(i);
+			out.append(name).append("_bucket{").append(prefix).append("le=\"").append(bounds[i] / scale)
+					.append("\"} ").append(cumulative).append('\n');
+		}
+		cumulative += buckets.get(bounds.length);
+		out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+		String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+		out.append(name).append("_sum").append(braces).append(' ').append(sum.get() / scale).append('\n');
+		out.append(name).append("_count").append(braces).append(' ').append(count.get()).append('\n');
+	}
+}
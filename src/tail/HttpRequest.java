@@ -0,0 +1,156 @@
+package tail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+
+class HttpRequest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private String method;
+	private String path;
+	private String query;
+	private String protocol;
+	private String connection;
+	private String range;
+	private String userAgent;
+	private String ifNoneMatch;
+	private String ifModifiedSince;
+	private String ifRange;
+
+	void reset() {
+		method = null;
+		path = "";
+		query = null;
+		protocol = "HTTP/1.0";
+		connection = null;
+		range = null;
+		userAgent = null;
+		ifNoneMatch = null;
+		ifModifiedSince = null;
+		ifRange = null;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	// without the leading slash and without the query string
+	public String getPath() {
+		return path;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public String getProtocol() {
+		return protocol;
+	}
+
+	public String getRange() {
+		return range;
+	}
+
+	public String getUserAgent() {
+		return userAgent;
+	}
+
+	public String getIfNoneMatch() {
+		return ifNoneMatch;
+	}
+
+	public String getIfModifiedSince() {
+		return ifModifiedSince;
+	}
+
+	public String getIfRange() {
+		return ifRange;
+	}
+
+	public boolean isKeepAlive() {
+		if (protocol.equals("HTTP/1.1"))
+			return connection == null || !connection.equalsIgnoreCase("close");
+		else
+			return connection != null && connection.equalsIgnoreCase("keep-alive");
+	}
+
+	public String getParameter(String name) {
+		if (query == null)
+			return null;
+		int start = 0;
+		while (start < query.length()) {
+			int end = query.indexOf('&', start);
+			if (end < 0)
+				end = query.length();
+			if (end - start > name.length() && query.charAt(start + name.length()) == '='
+					&& query.startsWith(name, start))
+				return query.substring(start + name.length() + 1, end);
+			start = end + 1;
+		}
+		return null;
+	}
+
+	// percent-decodes a path segment as UTF-8, null if it is malformed; unlike form encoding a '+' stays a '+'
+	static String decodePath(String path) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c != '%') {
+				// the parser reads the request line as ISO-8859-1, one char per byte
+				if (c > 0xff)
+					return null;
+				bytes.write(c);
+				continue;
+			}
+			int high = i + 2 < path.length() ? Character.digit(path.charAt(i + 1), 16) : -1;
+			int low = high >= 0 ? Character.digit(path.charAt(i + 2), 16) : -1;
+			if (low < 0)
+				return null;
+			bytes.write((high << 4) | low);
+			i += 2;
+		}
+		try {
+			return UTF8.newDecoder().decode(ByteBuffer.wrap(bytes.toByteArray())).toString();
+		} catch (CharacterCodingException e) {
+			return null;
+		}
+	}
+
+	void setRequestLine(String method, String path, String query, String protocol) {
+		this.method = method;
+		this.path = path;
+		this.query = query;
+		this.protocol = protocol;
+	}
+
+	void setConnection(String connection) {
+		this.connection = connection;
+	}
+
+	void setRange(String range) {
+		this.range = range;
+	}
+
+	void setUserAgent(String userAgent) {
+		this.userAgent = userAgent;
+	}
+
+	void setIfNoneMatch(String ifNoneMatch) {
+		this.ifNoneMatch = ifNoneMatch;
+	}
+
+	void setIfModifiedSince(String ifModifiedSince) {
+		this.ifModifiedSince = ifModifiedSince;
+	}
+
+	void setIfRange(String ifRange) {
+		this.ifRange = ifRange;
+	}
+
+	public String toString() {
+		return method + " /" + path + (query != null ? "?" + query : "") + " " + protocol;
+	}
+}
@@ -0,0 +1,204 @@
+package tail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+class HttpRequestParser {
+
+	static final int MAX_HEAD_SIZE = BufferPool.SMALL;
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final String[] KNOWN_PATHS = { "", "log", "reset", "file", "live", "favicon.ico" };
+	private static final String[] KNOWN_METHODS = { "GET", "HEAD" };
+	private static final byte[] RANGE = "range".getBytes(LATIN1);
+	private static final byte[] USER_AGENT = "user-agent".getBytes(LATIN1);
+	private static final byte[] CONNECTION = "connection".getBytes(LATIN1);
+	private static final byte[] IF_NONE_MATCH = "if-none-match".getBytes(LATIN1);
+	private static final byte[] IF_MODIFIED_SINCE = "if-modified-since".getBytes(LATIN1);
+	private static final byte[] IF_RANGE = "if-range".getBytes(LATIN1);
+
+	private final ReadableByteChannel input;
+	// reused for every request on the connection, pipelined bytes stay between start and end
+	private final ByteBuffer buffer;
+	private int start = 0;
+	private int end = 0;
+
+	public static class BadRequestException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final String status;
+
+		public BadRequestException(String status) {
+			super(status);
+			this.status = status;
+		}
+
+		public String getStatus() {
+			return status;
+		}
+	}
+
+	// the buffer belongs to the caller and may already hold the first bytes, up to its position
+	public HttpRequestParser(ReadableByteChannel input, ByteBuffer buffer) {
+		this.input = input;
+		this.buffer = buffer;
+		this.end = buffer.position();
+	}
+
+	// returns false if the connection was closed before a new request started
+	public boolean parse(HttpRequest request) throws IOException {
+		request.reset();
+		if (start > 0) {
+			buffer.limit(end).position(start);
+			buffer.compact();
+			end -= start;
+			start = 0;
+		}
+
+		int headEnd;
+		while ((headEnd = findHeadEnd(buffer, 0, end)) < 0) {
+			if (end == buffer.capacity())
+				throw new BadRequestException("431 Request Header Fields Too Large");
+			buffer.limit(buffer.capacity()).position(end);
+			int read = input.read(buffer);
+			if (read < 0) {
+				if (end == 0)
+					return false;
+				throw new EOFException("Connection closed in the middle of a request");
+			}
+			end += read;
+		}
+
+		int lineEnd = lineEnd(0, headEnd);
+		parseRequestLine(request, 0, lineEnd);
+		for (int line = next(lineEnd, headEnd); line < headEnd; line = next(lineEnd, headEnd)) {
+			lineEnd = lineEnd(line, headEnd);
+			if (lineEnd > line)
+				parseHeader(request, line, lineEnd);
+		}
+		start = headEnd;
+		return true;
+	}
+
+	// offset after the empty line that ends the request head, or -1
+	static int findHeadEnd(ByteBuffer bytes, int from, int to) {
+		for (int i = from + 1; i < to; ++i) {
+			if (bytes.get(i) == '\n') {
+				if (bytes.get(i - 1) == '\n')
+					return i + 1;
+				if (i >= from + 3 && bytes.get(i - 1) == '\r' && bytes.get(i - 2) == '\n')
+					return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	private void parseRequestLine(HttpRequest request, int from, int to) throws IOException {
+		int methodEnd = indexOf(' ', from, to);
+		if (methodEnd < 0)
+			throw new BadRequestException("400 Bad Request");
+		int targetStart = methodEnd + 1;
+		int targetEnd = indexOf(' ', targetStart, to);
+		if (targetEnd < 0)
+			targetEnd = to;
+		if (targetStart < targetEnd && buffer.get(targetStart) == '/')
+			targetStart++;
+		int queryStart = indexOf('?', targetStart, targetEnd);
+		int pathEnd = queryStart >= 0 ? queryStart : targetEnd;
+
+		String method = string(KNOWN_METHODS, from, methodEnd);
+		String path = string(KNOWN_PATHS, targetStart, pathEnd);
+		String query = queryStart >= 0 ? string(queryStart + 1, targetEnd) : null;
+		String protocol = targetEnd < to && equals(buffer, targetEnd + 1, to, "HTTP/1.1") ? "HTTP/1.1" : "HTTP/1.0";
+		request.setRequestLine(method, path, query, protocol);
+	}
+
+	private void parseHeader(HttpRequest request, int from, int to) {
+		int colon = indexOf(':', from, to);
+		if (colon < 0)
+			return;
+		int valueStart = colon + 1;
+		while (valueStart < to && (buffer.get(valueStart) == ' ' || buffer.get(valueStart) == '\t'))
+			valueStart++;
+		int valueEnd = to;
+		while (valueEnd > valueStart && (buffer.get(valueEnd - 1) == ' ' || buffer.get(valueEnd - 1) == '\t'))
+			valueEnd--;
+
+		if (equalsIgnoreCase(buffer, from, colon, RANGE)) {
+			request.setRange(string(valueStart, valueEnd));
+		} else if (equalsIgnoreCase(buffer, from, colon, USER_AGENT)) {
+			request.setUserAgent(string(valueStart, valueEnd));
+		} else if (equalsIgnoreCase(buffer, from, colon, CONNECTION)) {
+			request.setConnection(string(valueStart, valueEnd));
+		} else if (equalsIgnoreCase(buffer, from, colon, IF_NONE_MATCH)) {
+			request.setIfNoneMatch(string(valueStart, valueEnd));
+		} else if (equalsIgnoreCase(buffer, from, colon, IF_MODIFIED_SINCE)) {
+			request.setIfModifiedSince(string(valueStart, valueEnd));
+		} else if (equalsIgnoreCase(buffer, from, colon, IF_RANGE)) {
+			request.setIfRange(string(valueStart, valueEnd));
+		}
+	}
+
+	// end of the line content, without CR
+	private int lineEnd(int from, int to) {
+		int lf = indexOf('\n', from, to);
+		if (lf < 0)
+			lf = to;
+		return lf > from && buffer.get(lf - 1) == '\r' ? lf - 1 : lf;
+	}
+
+	private int next(int lineEnd, int to) {
+		int lf = indexOf('\n', lineEnd, to);
+		return lf < 0 ? to : lf + 1;
+	}
+
+	private int indexOf(char c, int from, int to) {
+		for (int i = from; i < to; ++i) {
+			if (buffer.get(i) == c)
+				return i;
+		}
+		return -1;
+	}
+
+	// reuses the constant for well-known values instead of allocating a new string
+	private String string(String[] known, int from, int to) {
+		for (String s : known) {
+			if (equals(buffer, from, to, s))
+				return s;
+		}
+		return string(from, to);
+	}
+
+	// the pooled buffer is direct and has no array to decode from
+	private String string(int from, int to) {
+		char[] chars = new char[to - from];
+		for (int i = 0; i < chars.length; ++i)
+			chars[i] = (char) (buffer.get(from + i) & 0xff);
+		return new String(chars);
+	}
+
+	private static boolean equals(ByteBuffer bytes, int from, int to, String s) {
+		if (to - from != s.length())
+			return false;
+		for (int i = 0; i < s.length(); ++i) {
+			if (bytes.get(from + i) != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean equalsIgnoreCase(ByteBuffer bytes, int from, int to, byte[] lowercase) {
+		if (to - from != lowercase.length)
+			return false;
+		for (int i = 0; i < lowercase.length; ++i) {
+			int b = bytes.get(from + i);
+			if (b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+			if (b != lowercase[i])
+				return false;
+		}
+		return true;
+	}
+}
@@ -2,4 +2,7 @@ package tail;
 
 public interface LogProvider {
 	String getLog();
+
+	// appends the lines from offset since on and returns the offset to continue from
+	long getLog(long since, StringBuilder out);
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+package tail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+class LogStore implements LogProvider, Runnable {
+
+	private static final int MAX_LINE_LENGTH = 4096;
+
+	private static class Record {
+		final long offset;
+		final String line;
+
+		Record(long offset, String line) {
+			this.offset = offset;
+			this.line = line;
+		}
+	}
+
+	private static class Pending {
+		final String line;
+		final PrintStream echo;
+
+		Pending(String line, PrintStream echo) {
+			this.line = line;
+			this.echo = echo;
+		}
+	}
+
+	// written only by the flusher thread, read without locks by everyone else
+	private final AtomicReferenceArray<Record> ring;
+	private volatile long end = 0;
+
+	private final Queue<Pending> queue = new ConcurrentLinkedQueue<Pending>();
+	private final Thread flusher;
+
+	public LogStore(int capacity) {
+		ring = new AtomicReferenceArray<Record>(capacity);
+		flusher = new Thread(this, "LogStore");
+		flusher.setDaemon(true);
+		flusher.start();
+		TailServer.setLogProvider(this);
+	}
+
+	// a stream that queues complete lines, optionally echoing them to the original console stream
+	public OutputStream newOutputStream(final PrintStream echo) {
+		return new OutputStream() {
+			private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+			@Override
+			public void write(int b) {
+				if (b == '\n') {
+					enqueue();
+				} else if (b != '\r' && line.size() < MAX_LINE_LENGTH) {
+					line.write(b);
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				for (int i = off; i < off + len; ++i)
+					write(b[i]);
+			}
+
+			private void enqueue() {
+				try {
+					queue.offer(new Pending(line.toString("UTF-8"), echo));
+				} catch (UnsupportedEncodingException e) {}
+				line.reset();
+				LockSupport.unpark(flusher);
+			}
+		};
+	}
+
+	@Override
+	public void run() {
+		List<PrintStream> echoes = new ArrayList<PrintStream>();
+		while (true) {
+			Pending pending;
+			while ((pending = queue.poll()) != null) {
+				long offset = end;
+				ring.set((int) (offset % ring.length()), new Record(offset, pending.line));
+				end = offset + 1;
+				if (pending.echo != null) {
+					pending.echo.println(pending.line);
+					if (!echoes.contains(pending.echo))
+						echoes.add(pending.echo);
+				}
+			}
+			for (PrintStream echo : echoes)
+				echo.flush();
+			echoes.clear();
+			LockSupport.park(this);
+		}
+	}
+
+	public long getOffset() {
+		return end;
+	}
+
+	@Override
+	public String getLog() {
+		StringBuilder out = new StringBuilder();
+		getLog(0, out);
+		return out.toString();
+	}
+
+	@Override
+	public long getLog(long since, StringBuilder out) {
+		long last = end;
+		long first = Math.max(since, Math.max(0, last - ring.length()));
+		for (long offset = first; offset < last; ++offset) {
+			Record record = ring.get((int) (offset % ring.length()));
+			// skip records that were overwritten while we were reading
+			if (record != null && record.offset == offset)
+				out.append(record.line).append('\n');
+		}
+		return last;
+	}
+}
@@ -0,0 +1,134 @@
+package tail;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+class Metrics {
+
+	static final AtomicLong bytesSent = new AtomicLong();
+	static final AtomicLong connections = new AtomicLong();
+	static final AtomicLong fileOpens = new AtomicLong();
+	static final AtomicLong seeks = new AtomicLong();
+	static final AtomicLong slowClientSkips = new AtomicLong();
+	static final AtomicLong slowClientDisconnects = new AtomicLong();
+	static final AtomicLong relayBytes = new AtomicLong();
+	static final AtomicLong relayReconnects = new AtomicLong();
+	static final AtomicLong relayLag = new AtomicLong(-1);
+	static final Histogram firstByteLatency = new Histogram(Histogram.LATENCY_BOUNDS, 1e9);
+	static final Histogram directoryScanDuration = new Histogram(Histogram.LATENCY_BOUNDS, 1e9);
+
+	// the clients are the ones in the registry, it is the only list of connected clients
+	public static String format(Collection<Client> clients) {
+		StringBuilder out = new StringBuilder(4096);
+		counter(out, "tailserver_bytes_sent_total", "Bytes sent to all clients.", bytesSent.get());
+		counter(out, "tailserver_connections_total", "Accepted connections.", connections.get());
+		counter(out, "tailserver_file_opens_total", "Files opened for reading.", fileOpens.get());
+		counter(out, "tailserver_seeks_total", "Requests that started at a position other than 0.", seeks.get());
+		counter(out, "tailserver_slow_client_skips_total", "Viewers moved ahead to the newest keyframe.",
+				slowClientSkips.get());
+		counter(out, "tailserver_slow_client_disconnects_total", "Viewers dropped for falling behind or stalling.",
+				slowClientDisconnects.get());
+		if (TailServer.UPSTREAM != null) {
+			counter(out, "tailserver_relay_bytes_received_total", "Bytes received from the upstream server.",
+					relayBytes.get());
+			counter(out, "tailserver_relay_reconnects_total", "Lost upstream connections.", relayReconnects.get());
+			header(out, "tailserver_relay_lag_bytes", "Bytes the relayed recording is behind upstream, -1 if unknown.",
+					"gauge");
+			out.append("tailserver_relay_lag_bytes ").append(relayLag.get()).append('\n');
+		}
+		header(out, "tailserver_active_clients", "Currently connected clients.", "gauge");
+		out.append("tailserver_active_clients ").append(clients.size()).append('\n');
+
+		header(out, "tailserver_client_bytes_sent", "Bytes sent to the client.", "gauge");
+		for (Client client : clients)
+			out.append("tailserver_client_bytes_sent{").append(labels(client)).append("} ")
+					.append(client.getBytesSent()).append('\n');
+		header(out, "tailserver_client_throughput_bytes", "Current throughput of the client in bytes per second.",
+				"gauge");
+		for (Client client : clients)
+			out.append("tailserver_client_throughput_bytes{").append(labels(client)).append("} ")
+					.append(client.getThroughput()).append('\n');
+		header(out, "tailserver_client_lag_bytes", "Bytes between the client and the end of its file.", "gauge");
+		for (Client client : clients)
+			out.append("tailserver_client_lag_bytes{").append(labels(client)).append("} ")
+					.append(client.getLag()).append('\n');
+
+		header(out, "tailserver_client_live_lag_bytes", "Bytes behind the end of a growing file after each write.",
+				"histogram");
+		for (Client client : clients)
+			client.getLagHistogram().write(out, "tailserver_client_live_lag_bytes", labels(client));
+		header(out, "tailserver_client_live_delay_seconds",
+				"Time from the recorder appending bytes to writing them to the client.", "histogram");
+		for (Client client : clients)
+			client.getDelayHistogram().write(out, "tailserver_client_live_delay_seconds", labels(client));
+
+		header(out, "tailserver_client_rate_limit_bytes", "Rate limit of the client in bytes per second, 0 if none.",
+				"gauge");
+		for (Client client : clients)
+			out.append("tailserver_client_rate_limit_bytes{").append(labels(client)).append("} ")
+					.append(client.getRateLimit()).append('\n');
+		header(out, "tailserver_client_tokens_bytes", "Tokens left in the rate limit bucket of the client.", "gauge");
+		for (Client client : clients)
+			out.append("tailserver_client_tokens_bytes{").append(labels(client)).append("} ")
+					.append(client.getTokens()).append('\n');
+		if (TokenBucket.global.isLimited()) {
+			header(out, "tailserver_bandwidth_tokens_bytes", "Tokens left in the global rate limit bucket.", "gauge");
+			out.append("tailserver_bandwidth_tokens_bytes ").append(TokenBucket.global.getTokens()).append('\n');
+		}
+
+		header(out, "tailserver_buffer_pool_bytes", "Direct memory held by the buffer pool.", "gauge");
+		out.append("tailserver_buffer_pool_bytes{state=\"allocated\"} ").append(BufferPool.getAllocated())
+				.append('\n');
+		out.append("tailserver_buffer_pool_bytes{state=\"used\"} ").append(BufferPool.getInUse()).append('\n');
+		counter(out, "tailserver_buffer_pool_misses_total", "Buffers taken from the heap because the pool was full.",
+				BufferPool.misses.get());
+		if (TailServer.BUFFER_POOL_DEBUG)
+			counter(out, "tailserver_buffer_pool_leaks_total", "Buffers collected without being released.",
+					BufferPool.leaks.get());
+
+		header(out, "tailserver_first_byte_seconds", "Time from accept to the first response byte.", "histogram");
+		firstByteLatency.write(out, "tailserver_first_byte_seconds", "");
+		header(out, "tailserver_directory_scan_seconds", "Duration of recording directory scans.", "histogram");
+		directoryScanDuration.write(out, "tailserver_directory_scan_seconds", "");
+
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			long cpu = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+			if (cpu >= 0) {
+				header(out, "process_cpu_seconds_total", "Total user and system CPU time spent in seconds.", "counter");
+				out.append("process_cpu_seconds_total ").append(cpu / 1e9).append('\n');
+			}
+		}
+		header(out, "jvm_memory_bytes_used", "Used bytes of a given JVM memory area.", "gauge");
+		out.append("jvm_memory_bytes_used{area=\"heap\"} ")
+				.append(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()).append('\n');
+		out.append("jvm_memory_bytes_used{area=\"nonheap\"} ")
+				.append(ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage().getUsed()).append('\n');
+		header(out, "jvm_threads_current", "Current thread count of the JVM.", "gauge");
+		out.append("jvm_threads_current ").append(ManagementFactory.getThreadMXBean().getThreadCount()).append('\n');
+		return out.toString();
+	}
+
+	private static String labels(Client client) {
+		File file = client.getFile();
+		return "client=\"" + escape(client.toString()) + "\",file=\"" + escape(file != null ? file.getName() : "")
+				+ "\"";
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		header(out, name, help, "counter");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void header(StringBuilder out, String name, String help, String type) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+}
@@ -0,0 +1,14 @@
+package tail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class ReadBroadcast implements ReadMethod {
+	@Override
+	public InputStream open(File file, long pos) throws IOException {
+		System.out.println("open: " + file + " (offset = " + TailServer.formatBytesHumanReadable(pos)
+				+ ", filesize = " + TailServer.formatBytesHumanReadable(file.length()) + ", broadcast)");
+		return new Broadcaster.Cursor(Broadcaster.acquire(file), file, pos);
+	}
+}
@@ -0,0 +1,25 @@
+package tail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+public class ReadChannel implements ReadMethod {
+	@Override
+	public InputStream open(File file, long pos) throws IOException {
+		return Channels.newInputStream(openChannel(file, pos));
+	}
+
+	public FileChannel openChannel(File file, long pos) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		Metrics.fileOpens.incrementAndGet();
+		System.out.println("open: " + file + " (offset = " + TailServer.formatBytesHumanReadable(pos)
+				+ ", filesize = " + TailServer.formatBytesHumanReadable(file.length()) + ", zero-copy)");
+		if (pos > 0)
+			channel.position(pos);
+		return channel;
+	}
+}
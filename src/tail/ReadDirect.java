@@ -10,6 +10,7 @@ public class ReadDirect implements ReadMethod {
 	@Override
 	public InputStream open(File file, long pos) throws IOException {
 		InputStream i = new FileInputStream(file);
+		Metrics.fileOpens.incrementAndGet();
 		System.out.println("open: " + file + " (offset = " + TailServer.formatBytesHumanReadable(pos) + ", filesize = "
 				+ TailServer.formatBytesHumanReadable(file.length()) + ")");
 		if (pos > 0)
@@ -0,0 +1,117 @@
+package tail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ReadMapped implements ReadMethod {
+
+	private static final int MAX_WINDOWS = 32;
+
+	// shared between all clients, least recently used windows are dropped and unmapped by the GC
+	private static final Map<String, MappedByteBuffer> windows = new LinkedHashMap<String, MappedByteBuffer>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MappedByteBuffer> eldest) {
+			return size() > MAX_WINDOWS;
+		}
+	};
+
+	@Override
+	public InputStream open(File file, long pos) throws IOException {
+		System.out.println("open: " + file + " (offset = " + TailServer.formatBytesHumanReadable(pos)
+				+ ", filesize = " + TailServer.formatBytesHumanReadable(file.length()) + ", mapped)");
+		return new MappedInputStream(file, pos);
+	}
+
+	static boolean isWorthMapping(File file, long pos) {
+		long length = file.length();
+		return length >= TailServer.MAPPED_THRESHOLD && pos < length - TailServer.MAPPED_WINDOW_SIZE;
+	}
+
+	private static ByteBuffer window(File file, long index) throws IOException {
+		final long start = index * TailServer.MAPPED_WINDOW_SIZE;
+		final long length = Math.min(TailServer.MAPPED_WINDOW_SIZE, file.length() - start);
+		if (length <= 0)
+			return null;
+
+		final String key = file.getPath() + "@" + index;
+		synchronized (windows) {
+			MappedByteBuffer window = windows.get(key);
+			if (window == null || window.capacity() < length) {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				Metrics.fileOpens.incrementAndGet();
+				try {
+					window = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, length);
+				} finally {
+					raf.close();
+				}
+				windows.put(key, window);
+			}
+			return window.duplicate();
+		}
+	}
+
+	private static class MappedInputStream extends InputStream implements ReadableByteChannel {
+		private final File file;
+		private long position;
+		private ByteBuffer current;
+
+		MappedInputStream(File file, long pos) {
+			this.file = file;
+			this.position = pos;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return read(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (current == null || !current.hasRemaining()) {
+				long index = position / TailServer.MAPPED_WINDOW_SIZE;
+				current = window(file, index);
+				if (current == null)
+					return -1;
+				current.position((int) (position - index * TailServer.MAPPED_WINDOW_SIZE));
+				if (!current.hasRemaining())
+					return -1;
+			}
+			int n = Math.min(dst.remaining(), current.remaining());
+			ByteBuffer slice = current.duplicate();
+			slice.limit(slice.position() + n);
+			dst.put(slice);
+			current.position(slice.position());
+			position += n;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public long skip(long n) {
+			position += n;
+			current = null;
+			return n;
+		}
+	}
+}
@@ -9,6 +9,10 @@ public class ReadStandard implements ReadMethod {
 	@Override
 	public InputStream open(File file, long pos) throws IOException {
 		InputStream i = null;
+		if (TailServer.READ_MODE.equals("broadcast") && TailDirectory.isFileGrowing(file))
+			i = new ReadBroadcast().open(file, pos);
+		if (i == null && ReadMapped.isWorthMapping(file, pos))
+			i = new ReadMapped().open(file, pos);
 		if (i == null)
 			i = new ReadDirect().open(file, pos);
 		return i;
@@ -0,0 +1,287 @@
+package tail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+// edge mode: mirrors the current recording of an upstream TailServer into the local recording directory,
+// which TailDirectory then serves like a local recorder's files
+class Relay implements Runnable {
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final int TIMEOUT = 30000;
+	private static final long RETRY_INTERVAL = 1000;
+
+	private final String host;
+	private final int port;
+	private final File directory;
+
+	// what upstream reported about its current recording, updated by the status thread
+	private volatile String upstreamName = null;
+	private volatile long upstreamLength = -1;
+	// file the relay is appending to
+	private volatile File current = null;
+	// only the first failure of an outage is logged
+	private boolean failing = false;
+
+	public Relay(String upstream, File directory) {
+		URI uri = URI.create(upstream.contains("://") ? upstream : "http://" + upstream);
+		this.host = uri.getHost();
+		this.port = uri.getPort() > 0 ? uri.getPort() : 80;
+		this.directory = directory;
+	}
+
+	public void start() {
+		Thread status = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (TailServer.sleep(RETRY_INTERVAL))
+					pollStatus();
+			}
+		}, "RelayStatus");
+		status.setDaemon(true);
+		status.start();
+		Thread puller = new Thread(this, "Relay");
+		puller.setDaemon(true);
+		puller.start();
+	}
+
+	// bytes the local copy of the current recording is behind upstream, -1 if unknown
+	public long getLag() {
+		File file = current;
+		if (file == null || upstreamLength < 0 || !file.getName().equals(upstreamName))
+			return -1;
+		return Math.max(0, upstreamLength - file.length());
+	}
+
+	private void pollStatus() {
+		try {
+			Response response = request("/file", -1);
+			try {
+				String length = response.headers.get("x-file-length");
+				String name = new String(response.readAll(), "UTF-8").trim();
+				upstreamName = name.isEmpty() ? null : name;
+				upstreamLength = length != null ? Long.parseLong(length) : -1;
+				Metrics.relayLag.set(getLag());
+			} finally {
+				response.close();
+			}
+		} catch (IOException e) {
+			upstreamLength = -1;
+			Metrics.relayLag.set(-1);
+		} catch (NumberFormatException e) {
+			upstreamLength = -1;
+			Metrics.relayLag.set(-1);
+		}
+	}
+
+	@Override
+	public void run() {
+		System.out.println("[#] Relaying from " + host + ":" + port + " into " + directory);
+		while (true) {
+			String name = upstreamName;
+			if (name == null || !isSafeName(name)) {
+				if (!TailServer.sleep(RETRY_INTERVAL))
+					break;
+				continue;
+			}
+			try {
+				pull(name);
+				failing = false;
+			} catch (IOException e) {
+				Metrics.relayReconnects.incrementAndGet();
+				if (!failing)
+					System.out.println("[-] Upstream connection lost: " + e.getMessage());
+				failing = true;
+				if (!TailServer.sleep(RETRY_INTERVAL))
+					break;
+			}
+		}
+	}
+
+	// copies the recording from where the local copy ends, until upstream ends the stream
+	private void pull(String name) throws IOException {
+		File file = new File(directory, name);
+		long offset = file.length();
+		boolean known = file.equals(current);
+		current = file;
+		removeOldRecordings(file);
+		Response response = request("/stream/" + URLEncoder.encode(name, "UTF-8") + "?raw=1", offset);
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			if (response.status == 206 && offset == response.rangeStart()) {
+				out.seek(offset);
+			} else if (response.status == 200 && offset > 0 && offset == response.streamOffset()) {
+				// a growing file, its remainder has no Content-Range
+				out.seek(offset);
+			} else if (response.status == 200) {
+				// upstream sends the whole file, e.g. because it was replaced
+				out.setLength(0);
+				offset = 0;
+			} else if (response.status == 416) {
+				long size = response.completeLength();
+				if (size >= 0 && size < offset) {
+					// upstream's file is shorter than the local copy, it was replaced: start over
+					System.out.println("[-] Upstream has only " + TailServer.formatBytesHumanReadable(size) + " of "
+							+ name + ", relaying it again");
+					out.setLength(0);
+					return;
+				}
+				// nothing new yet
+				TailServer.sleep(RETRY_INTERVAL);
+				return;
+			} else {
+				throw new IOException("Unexpected upstream response: " + response.statusLine);
+			}
+			if (!known || offset == 0 || failing)
+				System.out.println("[+] Relaying " + name + " from " + TailServer.formatBytesHumanReadable(offset));
+			failing = false;
+
+			final byte[] buffer = new byte[32768];
+			for (int read = response.input.read(buffer); read >= 0; read = response.input.read(buffer)) {
+				out.write(buffer, 0, read);
+				Metrics.relayBytes.addAndGet(read);
+			}
+		} finally {
+			out.close();
+			response.close();
+		}
+	}
+
+	// the relay only keeps a rolling window of recent recordings
+	private void removeOldRecordings(File keep) {
+		File[] files = directory.listFiles(DirectoryIndex.RECORDINGS);
+		if (files == null || files.length <= TailServer.RELAY_KEEP)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		for (int i = TailServer.RELAY_KEEP; i < files.length; i++) {
+			if (!files[i].equals(keep) && files[i].delete()) {
+				SidecarIndex.delete(files[i]);
+				System.out.println("[-] Relay cache: removed " + files[i].getName());
+			}
+		}
+	}
+
+	private static boolean isSafeName(String name) {
+		return !name.startsWith(".") && name.indexOf('/') < 0 && name.indexOf('\\') < 0;
+	}
+
+	private Response request(String path, long offset) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+			socket.setSoTimeout(TIMEOUT);
+			// HTTP/1.0 bodies end with the connection, no chunk decoding needed
+			String head = "GET " + path + " HTTP/1.0\r\nHost: " + host + "\r\nUser-Agent: TailServer-Relay\r\n"
+					+ (offset > 0 ? "Range: bytes=" + offset + "-\r\n" : "") + "\r\n";
+			socket.getOutputStream().write(head.getBytes(LATIN1));
+			return new Response(socket);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private static class Response {
+		final Socket socket;
+		final InputStream input;
+		final String statusLine;
+		final int status;
+		final Map<String, String> headers = new HashMap<String, String>();
+
+		Response(Socket socket) throws IOException {
+			this.socket = socket;
+			this.input = new BufferedInputStream(socket.getInputStream());
+			statusLine = readLine();
+			String[] parts = statusLine.split(" ");
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+				throw new IOException("Not an HTTP response: " + statusLine);
+			try {
+				status = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException e) {
+				throw new IOException("Not an HTTP response: " + statusLine);
+			}
+			for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+				int colon = line.indexOf(':');
+				if (colon > 0)
+					headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+		}
+
+		long rangeStart() {
+			String range = headers.get("content-range");
+			if (range == null || !range.startsWith("bytes "))
+				return -1;
+			int dash = range.indexOf('-');
+			try {
+				return Long.parseLong(range.substring(6, dash));
+			} catch (RuntimeException e) {
+				return -1;
+			}
+		}
+
+		// where the body of a 200 for a growing file starts, 0 if it is the whole file
+		long streamOffset() {
+			String offset = headers.get("x-stream-offset");
+			try {
+				return offset != null ? Long.parseLong(offset) : 0;
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		// the size in "Content-Range: bytes */<size>" of a 416, -1 if there is none
+		long completeLength() {
+			String range = headers.get("content-range");
+			if (range == null || !range.startsWith("bytes "))
+				return -1;
+			try {
+				return Long.parseLong(range.substring(range.indexOf('/') + 1).trim());
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		byte[] readAll() throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			for (int read = input.read(buffer); read >= 0; read = input.read(buffer))
+				out.write(buffer, 0, read);
+			return out.toByteArray();
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			for (int c = input.read(); c != '\n'; c = input.read()) {
+				if (c < 0)
+					throw new IOException("Connection closed in the response head");
+				if (c != '\r')
+					line.append((char) c);
+			}
+			return line.toString();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package tail;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+class SelectorEngine implements ConnectionEngine {
+
+	private static final long HEAD_TIMEOUT = 30000;
+	// what the parser answers on a blocking connection
+	private static final byte[] HEAD_TOO_LARGE = ("HTTP/1.0 431 Request Header Fields Too Large\r\n"
+			+ "Server: TailServer/1.0\r\n" + "Connection: close\r\n" + "Content-Type: text/plain; charset=utf-8\r\n"
+			+ "Content-Length: 0\r\n" + "\r\n").getBytes(Charset.forName("ISO-8859-1"));
+
+	private final ExecutorService workers = ThreadEngine.newWorkerPool();
+
+	private static class Pending {
+		// pooled, handed to the worker with the request or released when the connection is closed here
+		final ByteBuffer head = BufferPool.acquire(HttpRequestParser.MAX_HEAD_SIZE);
+		final long since = System.currentTimeMillis();
+		final long accepted = System.nanoTime();
+	}
+
+	@Override
+	public void serve(ServerSocketChannel server, ClientList clients) throws IOException {
+		System.out.println("Connection engine: selector" + (ThreadEngine.VIRTUAL ? " (virtual threads)" : ""));
+		Selector selector = Selector.open();
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		List<SelectionKey> complete = new ArrayList<SelectionKey>();
+		while (true) {
+			selector.select(1000);
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					if (!key.isValid()) {
+						continue;
+					} else if (key.isAcceptable()) {
+						SocketChannel channel = server.accept();
+						if (channel != null) {
+							channel.configureBlocking(false);
+							channel.register(selector, SelectionKey.OP_READ, new Pending());
+						}
+					} else if (key.isReadable() && readHead(key)) {
+						key.cancel();
+						complete.add(key);
+					}
+				} catch (IOException e) {
+					close(key);
+				}
+			}
+
+			if (!complete.isEmpty()) {
+				// flush the cancelled keys so the channels can go back to blocking mode
+				selector.selectNow();
+				for (SelectionKey key : complete) {
+					dispatch(key, clients);
+				}
+				complete.clear();
+			}
+			expire(selector);
+		}
+	}
+
+	private boolean readHead(SelectionKey key) throws IOException {
+		Pending pending = (Pending) key.attachment();
+		int read = ((SocketChannel) key.channel()).read(pending.head);
+		if (read < 0)
+			throw new IOException("Connection closed before request was complete");
+		if (HttpRequestParser.findHeadEnd(pending.head, 0, pending.head.position()) >= 0)
+			return true;
+		if (!pending.head.hasRemaining()) {
+			// short enough for the send buffer of a new connection, so it doesn't have to wait for OP_WRITE
+			((SocketChannel) key.channel()).write(ByteBuffer.wrap(HEAD_TOO_LARGE));
+			throw new IOException("Request head too large");
+		}
+		return false;
+	}
+
+	private void dispatch(SelectionKey key, final ClientList clients) {
+		Pending pending = (Pending) key.attachment();
+		final ByteBuffer head = pending.head;
+		final long accepted = pending.accepted;
+		try {
+			SocketChannel channel = (SocketChannel) key.channel();
+			channel.configureBlocking(true);
+			final Socket socket = channel.socket();
+			workers.execute(new Runnable() {
+				public void run() {
+					new ServerThread(socket, clients, head, accepted).run();
+				}
+			});
+		} catch (IOException e) {
+			close(key);
+		}
+	}
+
+	private void expire(Selector selector) {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid() && key.attachment() instanceof Pending
+					&& now - ((Pending) key.attachment()).since > HEAD_TIMEOUT) {
+				close(key);
+			}
+		}
+	}
+
+	private static void close(SelectionKey key) {
+		if (key.attachment() instanceof Pending)
+			BufferPool.release(((Pending) key.attachment()).head);
+		key.attach(null);
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {}
+	}
+}
@@ -1,257 +1,641 @@
 package tail;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 class ServerThread implements Runnable {
 	// "Content-Type: application/octet-stream\r\n"
-	private static final CharSequence HTTP_RESPONSE = "Server: TailServer/1.0\r\n" + "Connection: close\r\n";
+	private static final CharSequence HTTP_SERVER = "Server: TailServer/1.0\r\n";
+	private static final String[] USER_AGENT_PRODUCTS = { "curl", "wget", "chrome", "firefox" };
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	// besides plain bytes, in lower case
+	private static final Set<String> POSITION_UNITS = new HashSet<String>(Arrays.asList("%", "k", "kb", "kib", "m",
+			"mb", "mib", "g", "gb", "gib"));
+
+	// blocking channel reads ignore the socket timeout, the reaper closes connections that wait too long
+	private static final Set<ServerThread> reading = Collections
+			.newSetFromMap(new ConcurrentHashMap<ServerThread, Boolean>());
+	private static Thread reaper = null;
 
 	private Socket socket = null;
 	private Client client = null;
 	private ClientList clients = null;
+	// pooled, holds the first bytes of the request if the selector read them
+	private ByteBuffer head = null;
+	// start of the read the thread is waiting in, 0 if it isn't waiting for a request
+	private volatile long readStarted = 0;
+	private volatile boolean idle = false;
+	private String protocol = "HTTP/1.0";
+	private boolean keepAlive = false;
+	private long accepted;
 
 	public ServerThread(Socket socket, ClientList clients) {
+		this(socket, clients, null, System.nanoTime());
+	}
+
+	public ServerThread(Socket socket, ClientList clients, ByteBuffer head, long accepted) {
 		this.socket = socket;
+		this.head = head;
+		this.accepted = accepted;
 		this.client = clients.newClient();
 		this.clients = clients;
 		client.setRemoteHost(socket.getInetAddress().getCanonicalHostName());
 		client.setRemotePort(socket.getPort());
+		Metrics.connections.incrementAndGet();
 		System.out.println("Connected: " + client);
 	}
 
 	public void run() {
+		ByteBuffer buffer = head != null ? head : BufferPool.acquire(HttpRequestParser.MAX_HEAD_SIZE);
+		head = null;
+		startReaper();
+		reading.add(this);
 		try {
 			BufferedOutputStream stream = new BufferedOutputStream(socket.getOutputStream());
-			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-			String request = parseRequest(in);
-			List<String> headers = readHeaders(in);
-			if (request.equals("log")) {
-				writeLog(in, stream, headers);
-			} else if (request.equals("reset")) {
-				reset(in, stream, headers);
-			} else if (request.equals("favicon.ico")) {
-				// fuck you
-			} else if (request.equals("file")) {
-				writeLatestFilename(in, stream, headers);
-			} else {
-				writeLatestStream(in, stream, headers, request);
-				System.out.println("Stats: sent: " + client.getSize() + ", average speed: "
-						+ client.getAverageSpeed());
-			}
+			ReadableByteChannel input = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket
+					.getInputStream());
+			HttpRequestParser parser = new HttpRequestParser(input, buffer);
+			HttpRequest request = new HttpRequest();
+			socket.setSoTimeout((int) TailServer.KEEP_ALIVE_TIMEOUT);
 
-			stream.close();
-			in.close();
-			socket.close();
-			clients.removeClient(client);
-			client.disconnect();
-			System.out.println("Disconnected: " + client);
-			System.out.println();
+			// control requests may be pipelined on a persistent connection, streams end it
+			do {
+				try {
+					readStarted = System.currentTimeMillis();
+					boolean parsed = parser.parse(request);
+					readStarted = 0;
+					if (!parsed)
+						break;
+				} catch (HttpRequestParser.BadRequestException e) {
+					keepAlive = false;
+					writeResponse(stream, e.getStatus(), "");
+					break;
+				}
+				protocol = request.getProtocol();
+				keepAlive = request.isKeepAlive();
+				String path = request.getPath();
+				if (path.equals("log")) {
+					writeLog(stream, request);
+				} else if (path.equals("reset")) {
+					reset(stream, request);
+				} else if (path.equals("favicon.ico")) {
+					// fuck you
+					writeResponse(stream, "404 Not Found", "");
+				} else if (path.equals("file")) {
+					writeLatestFilename(stream, request);
+				} else if (path.equals("files")) {
+					writeFilenames(stream, request);
+				} else if (path.equals("metrics")) {
+					writeMetrics(stream, request);
+				} else if (path.equals("live")) {
+					keepAlive = false;
+					writeLiveStream(stream, request);
+					System.out.println("Stats: sent: " + client.getSize() + ", average speed: "
+							+ client.getAverageSpeed() + ", lag: " + client.getLagSummary());
+					break;
+				} else if (path.startsWith("stream/")) {
+					writeNamedStream(stream, request, path.substring("stream/".length()));
+					System.out.println("Stats: sent: " + client.getSize() + ", average speed: "
+							+ client.getAverageSpeed() + ", lag: " + client.getLagSummary());
+					if (!keepAlive)
+						break;
+				} else {
+					writeLatestStream(stream, request);
+					System.out.println("Stats: sent: " + client.getSize() + ", average speed: "
+							+ client.getAverageSpeed() + ", lag: " + client.getLagSummary());
+					if (!keepAlive)
+						break;
+				}
+				stream.flush();
+			} while (keepAlive);
 
+		} catch (SocketTimeoutException e) {
+			// idle persistent connection
 		} catch (IOException e) {
+			if (!idle)
+				e.printStackTrace();
+		} catch (RuntimeException e) {
+			// a bug in one request must not leak the connection and its client
 			e.printStackTrace();
 		}
+
+		reading.remove(this);
+		try {
+			socket.close();
+		} catch (IOException e) {}
+		BufferPool.release(buffer);
+		clients.removeClient(client);
+		client.disconnect();
+		System.out.println("Disconnected: " + client);
+		System.out.println();
 	}
 
-	private String parseRequest(BufferedReader in) throws IOException {
-		String request = in.readLine();
-		if (request == null) {
-			request = "";
+	private static synchronized void startReaper() {
+		if (reaper == null) {
+			reaper = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (TailServer.sleep(1000)) {
+						long now = System.currentTimeMillis();
+						for (ServerThread thread : reading) {
+							long started = thread.readStarted;
+							if (started > 0 && now - started > TailServer.KEEP_ALIVE_TIMEOUT)
+								thread.expire();
+						}
+					}
+				}
+			}, "Reaper");
+			reaper.setDaemon(true);
+			reaper.start();
 		}
-		if (request.contains(" ")) {
-			request = request.split(" ")[1];
-			if (request.startsWith("/")) {
-				request = request.substring(1);
-			}
-		}
-		return request;
 	}
 
-	private void writeLatestStream(BufferedReader in, BufferedOutputStream stream, List<String> headers,
-			String request) throws IOException {
-		System.out.println("Request: video stream (client = " + extractUserAgent(headers) + ", path = /"
-				+ request + ")");
-		File file = null;
+	// unblocks a read on a connection that didn't send a request in time
+	private void expire() {
+		reading.remove(this);
+		idle = true;
 		try {
-			file = TailDirectory.getCurrentStreamFile();
+			socket.close();
+		} catch (IOException e) {}
+	}
+
+	private CharSequence responseHeaders() {
+		return HTTP_SERVER + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n";
+	}
+
+	private void firstByte() {
+		if (accepted != 0) {
+			Metrics.firstByteLatency.observe(System.nanoTime() - accepted);
+			accepted = 0;
+		}
+	}
+
+	// status line and headers are built in place, the stream's own buffer is the only copy
+	private static void writeHead(OutputStream stream, StringBuilder response) throws IOException {
+		stream.write(response.toString().getBytes(LATIN1));
+		response.setLength(0);
+	}
 
-			long pos = extractPosition(headers, file);
-			writeStreamHeaders(stream, file, pos);
+	private void writeResponse(BufferedOutputStream stream, String status, String body) throws IOException {
+		writeResponse(stream, status, "text/plain; charset=utf-8", "", body);
+	}
 
-			new Tail(socket, stream, client).run(file, pos);
+	private void writeResponse(BufferedOutputStream stream, String status, String contentType, String headers,
+			String body) throws IOException {
+		byte[] content = body.getBytes("UTF-8");
+		firstByte();
+		StringBuilder response = new StringBuilder(256);
+		response.append(protocol + " " + status + "\r\n");
+		response.append(responseHeaders());
+		response.append("Content-Type: " + contentType + "\r\n");
+		response.append(headers);
+		response.append("Content-Length: " + content.length + "\r\n");
+		response.append("\r\n");
+		writeHead(stream, response);
+		stream.write(content);
+		stream.flush();
+	}
 
+	private void writeLatestStream(BufferedOutputStream stream, HttpRequest request) throws IOException {
+		System.out.println("Request: video stream (client = " + extractUserAgent(request) + ", path = /"
+				+ request.getPath() + ")");
+		try {
+			writeStream(stream, request, TailDirectory.getCurrentStreamFile(), TailServer.CLIENT_RATE_LIMIT);
 		} catch (FileNotFoundException e) {
 			System.err.println("Error! No files found.");
-			PrintWriter pw = new PrintWriter(stream);
-			pw.append("HTTP/1.0 404 Not Found\r\n");
-			pw.append(HTTP_RESPONSE);
-			pw.append("Content-Type: text/plain\r\n");
-			pw.append("\r\n");
-			pw.flush();
+			writeResponse(stream, "404 Not Found", "");
 		}
 	}
 
-	private void writeLatestFilename(BufferedReader in, BufferedOutputStream stream, List<String> headers)
-			throws IOException {
-		System.out.println("Request: latest file name (client = " + extractUserAgent(headers) + ")");
-		PrintWriter pw = new PrintWriter(stream);
-		pw.append("HTTP/1.0 200 Ok\r\n");
-		pw.append(HTTP_RESPONSE);
-		pw.append("Content-Type: text/plain\r\n");
-		pw.append("\r\n");
-		pw.flush();
-		File file = null;
+	// starts at the latest keyframe of the current recording, with the group of pictures from memory
+	private void writeLiveStream(BufferedOutputStream stream, HttpRequest request) throws IOException {
+		System.out.println("Request: live stream (client = " + extractUserAgent(request) + ")");
+		File file;
 		try {
 			file = TailDirectory.getCurrentStreamFile();
-			pw.append(file.getName());
-			System.out.println("=> " + file.getName());
 		} catch (FileNotFoundException e) {
 			System.err.println("Error! No files found.");
+			writeResponse(stream, "404 Not Found", "");
+			return;
+		}
+		FlvIndex index = FlvIndex.forFile(file);
+		index.update();
+		FlvIndex.LiveStart live = index.getLiveStart();
+		if (live == null) {
+			writeStream(stream, request, file, TailServer.CLIENT_RATE_LIMIT);
+			return;
+		}
+		System.out.println("Live: keyframe at " + live.keyframe + " bytes ("
+				+ TailServer.formatBytesHumanReadable(live.end - live.keyframe) + " from memory)");
+		writeStream(stream, request, file, live.end, live.data, TailServer.CLIENT_RATE_LIMIT);
+	}
+
+	private void writeNamedStream(BufferedOutputStream stream, HttpRequest request, String name)
+			throws IOException {
+		name = HttpRequest.decodePath(name);
+		if (name == null) {
+			keepAlive = false;
+			writeResponse(stream, "400 Bad Request", "");
+			return;
+		}
+		System.out.println("Request: video stream " + name + " (client = " + extractUserAgent(request) + ")");
+		// only names from the catalog can be served, nothing outside the recording directory
+		File file = TailDirectory.getRecording(name);
+		if (file != null) {
+			writeStream(stream, request, file, TailServer.STREAM_RATE_LIMIT);
+		} else {
+			System.err.println("Error! No such recording: " + name);
+			writeResponse(stream, "404 Not Found", "");
+		}
+	}
+
+	private void writeStream(BufferedOutputStream stream, HttpRequest request, File file, long rateLimit)
+			throws IOException {
+		long time = extractTime(request);
+		double percent = extractPercent(request);
+		if (percent >= 0) {
+			// bytes don't map linearly to time, the keyframe index knows the duration
+			FlvIndex index = FlvIndex.forFile(file);
+			index.update();
+			if (index.isValid() && index.getDuration() > 0)
+				time = (long) (index.getDuration() * Math.min(percent, 100) / 100);
 		}
-		pw.flush();
+		if (!TailDirectory.isFileGrowing(file) && time < 0) {
+			writeFile(stream, request, file, rateLimit);
+			return;
+		}
+		long pos = extractPosition(request, file);
+		byte[] prefix = null;
+		if (pos > 0 || time >= 0)
+			Metrics.seeks.incrementAndGet();
+
+		// ?raw asks for the exact bytes, e.g. a relay resuming its copy
+		boolean raw = request.getParameter("raw") != null;
+		FlvIndex index = FlvIndex.forFile(file);
+		index.update();
+		if (index.isValid() && !raw && (time >= 0 || pos > 0)) {
+			long keyframe = time >= 0 ? index.keyframeAtTime(time) : index.keyframeAtOrBefore(pos);
+			if (keyframe > 0) {
+				System.out.println("Seek: " + (time >= 0 ? time + " ms" : pos + " bytes") + " => keyframe at "
+						+ keyframe + " bytes");
+				pos = keyframe;
+				prefix = index.getPrefix();
+			} else {
+				pos = 0;
+			}
+		}
+		writeStream(stream, request, file, pos, prefix, rateLimit);
 	}
 
-	private void writeLog(BufferedReader in, BufferedOutputStream stream, List<String> headers)
+	// finished recordings don't change anymore: validators, exact byte ranges and sendfile bodies
+	private void writeFile(BufferedOutputStream stream, HttpRequest request, File file, long rateLimit)
 			throws IOException {
-		System.out.println("Request: log output (client = " + extractUserAgent(headers) + ")");
-		PrintWriter pw = new PrintWriter(stream);
-		pw.append("HTTP/1.0 200 Ok\r\n");
-		pw.append(HTTP_RESPONSE);
-		pw.append("Content-Type: text/plain\r\n");
-		pw.append("\r\n");
-		pw.flush();
+		final long size = file.length();
+		final long lastModified = file.lastModified();
+		final String etag = StaticFile.etag(file);
+		final String validators = "ETag: " + etag + "\r\nLast-Modified: " + StaticFile.formatDate(lastModified)
+				+ "\r\nAccept-Ranges: bytes\r\n";
+		StringBuilder response = new StringBuilder(256);
+		if (StaticFile.isNotModified(request, etag, lastModified)) {
+			firstByte();
+			response.append(protocol + " 304 Not Modified\r\n");
+			response.append(responseHeaders());
+			response.append(validators);
+			response.append("\r\n");
+			writeHead(stream, response);
+			stream.flush();
+			return;
+		}
+
+		long[] ranges = null;
+		if (request.getRange() != null && StaticFile.isRangeValid(request, etag, lastModified))
+			ranges = StaticFile.parseRanges(request.getRange(), file);
+		if (ranges != null && ranges.length == 0) {
+			firstByte();
+			response.append(protocol + " 416 Requested Range Not Satisfiable\r\n");
+			response.append(responseHeaders());
+			response.append("Content-Range: bytes */" + size + "\r\n");
+			response.append("Content-Length: 0\r\n");
+			response.append("\r\n");
+			writeHead(stream, response);
+			stream.flush();
+			return;
+		}
+		if (ranges != null && (ranges.length > 2 || ranges[0] > 0))
+			Metrics.seeks.incrementAndGet();
+
+		boolean head = "HEAD".equals(request.getMethod());
+		Tail tail = new Tail(socket, stream, client);
+		tail.setRateLimit(extractRate(request, file, rateLimit));
+		try {
+			firstByte();
+			response.append(protocol + (ranges != null ? " 206 Partial Content\r\n" : " 200 Ok\r\n"));
+			response.append(responseHeaders());
+			response.append(validators);
+			if (ranges == null) {
+				response.append("Content-Type: video/x-flv\r\n");
+				response.append("Content-Length: " + size + "\r\n\r\n");
+				writeHead(stream, response);
+				if (!head)
+					tail.send(file, 0, size);
+			} else if (ranges.length == 2) {
+				response.append("Content-Type: video/x-flv\r\n");
+				response.append("Content-Range: bytes " + ranges[0] + "-" + ranges[1] + "/" + size + "\r\n");
+				response.append("Content-Length: " + (ranges[1] - ranges[0] + 1) + "\r\n\r\n");
+				writeHead(stream, response);
+				if (!head)
+					tail.send(file, ranges[0], ranges[1] - ranges[0] + 1);
+			} else {
+				String boundary = "TAILSERVER" + Long.toHexString(System.nanoTime());
+				String[] partHeaders = StaticFile.partHeaders(boundary, ranges, size);
+				response.append("Content-Type: multipart/byteranges; boundary=" + boundary + "\r\n");
+				response.append("Content-Length: " + StaticFile.multipartLength(boundary, partHeaders, ranges)
+						+ "\r\n\r\n");
+				writeHead(stream, response);
+				if (!head) {
+					for (int i = 0; i < ranges.length; i += 2) {
+						response.append(partHeaders[i / 2]);
+						writeHead(stream, response);
+						tail.send(file, ranges[i], ranges[i + 1] - ranges[i] + 1);
+					}
+					response.append(StaticFile.multipartEnd(boundary));
+					writeHead(stream, response);
+				}
+			}
+			stream.flush();
+		} catch (IOException e) {
+			// players drop downloads when they seek elsewhere
+			System.out.println("Download aborted: " + e.getMessage());
+			keepAlive = false;
+		}
+	}
 
+	private void writeStream(BufferedOutputStream stream, HttpRequest request, File file, long pos, byte[] prefix,
+			long rateLimit) throws IOException {
+		keepAlive = false;
+		OutputStream body = stream;
+		if (writeStreamHeaders(stream, file, pos, prefix))
+			body = new ChunkedOutputStream(stream);
+		if (prefix != null)
+			body.write(prefix);
+
+		Tail tail = new Tail(socket, body, client);
+		tail.setRateLimit(extractRate(request, file, rateLimit));
+		// a skip would leave a hole in a relay's copy that no later Range request can repair
+		tail.setExact(request.getParameter("raw") != null);
+		tail.run(file, pos);
+
+		// streams end the connection, a dropped client gets nothing more
+		if (tail.isConnected()) {
+			if (body instanceof ChunkedOutputStream)
+				((ChunkedOutputStream) body).finish();
+			else
+				body.flush();
+		}
+	}
+
+	private void writeLatestFilename(BufferedOutputStream stream, HttpRequest request) throws IOException {
+		System.out.println("Request: latest file name (client = " + extractUserAgent(request) + ")");
+		String name = "";
+		String headers = "";
+		try {
+			File file = TailDirectory.getCurrentStreamFile();
+			name = file.getName();
+			// lets relays see how far behind they are
+			headers = "X-File-Length: " + file.length() + "\r\n";
+			System.out.println("=> " + name);
+		} catch (FileNotFoundException e) {
+			System.err.println("Error! No files found.");
+		}
+		writeResponse(stream, "200 Ok", "text/plain; charset=utf-8", headers, name);
+	}
+
+	private void writeLog(BufferedOutputStream stream, HttpRequest request) throws IOException {
+		System.out.println("Request: log output (client = " + extractUserAgent(request) + ")");
 		if (TailServer.currentLogProvider != null) {
-			String log = TailServer.currentLogProvider.getLog();
-			pw.append(log);
+			long since = 0;
+			String param = request.getParameter("since");
+			if (param != null) {
+				try {
+					since = Long.parseLong(param);
+				} catch (NumberFormatException e) {}
+			}
+			StringBuilder log = new StringBuilder();
+			long offset = TailServer.currentLogProvider.getLog(since, log);
 			System.out.println("=> " + log.length() + " bytes");
+			writeResponse(stream, "200 Ok", "text/plain; charset=utf-8", "X-Log-Offset: " + offset + "\r\n",
+					log.toString());
 		} else {
-			pw.append("no log...");
+			writeResponse(stream, "200 Ok", "no log...");
 		}
-		pw.flush();
 	}
 
-	private void reset(BufferedReader in, BufferedOutputStream stream, List<String> headers) {
-		System.out.println("Request: cache reset (client = " + extractUserAgent(headers) + ")");
-		PrintWriter pw = new PrintWriter(stream);
-		pw.append("HTTP/1.0 200 Ok\r\n");
-		pw.append(HTTP_RESPONSE);
-		pw.append("Content-Type: text/plain\r\n");
-		pw.append("\r\n");
-		pw.flush();
+	private void writeFilenames(BufferedOutputStream stream, HttpRequest request) throws IOException {
+		System.out.println("Request: file names (client = " + extractUserAgent(request) + ")");
+		StringBuilder names = new StringBuilder();
+		for (String name : TailDirectory.getRecordingNames())
+			names.append(name).append('\n');
+		writeResponse(stream, "200 Ok", names.toString());
+	}
+
+	private void writeMetrics(BufferedOutputStream stream, HttpRequest request) throws IOException {
+		writeResponse(stream, "200 Ok", "text/plain; version=0.0.4; charset=utf-8", "", Metrics.format(clients.getClients()));
+	}
+
+	private void reset(BufferedOutputStream stream, HttpRequest request) throws IOException {
+		System.out.println("Request: cache reset (client = " + extractUserAgent(request) + ")");
+		writeResponse(stream, "200 Ok", "");
 
 		TailDirectory.reset();
 	}
 
-	private void writeStreamHeaders(BufferedOutputStream stream, File file, long pos) {
-		long size = TailDirectory.isFileGrowing(file) ? TailServer.MAX_FILE_LENGTH : file.length();
-		PrintWriter pw = new PrintWriter(stream);
-		if (pos > 0) {
-			pw.append("HTTP/1.0 206 Partial Content\r\n");
-			pw.append(HTTP_RESPONSE);
-			pw.append("Content-Type: video/x-flv\r\n");
-			pw.append("Content-Range: " + pos + "-" + (size - 1) + "/" + size + "\r\n");
-			pw.append("Content-Length: " + (size - pos) + "\r\n");
+	// returns true if the body has to be sent with chunked transfer encoding
+	private boolean writeStreamHeaders(BufferedOutputStream stream, File file, long pos, byte[] prefix)
+			throws IOException {
+		boolean growing = TailDirectory.isFileGrowing(file);
+		boolean chunked = growing && protocol.equals("HTTP/1.1");
+		long size = file.length();
+		firstByte();
+		StringBuilder response = new StringBuilder(256);
+		if (prefix != null || pos <= 0 || growing) {
+			// a keyframe aligned seek starts a new FLV stream: header, metadata, sequence headers, tags.
+			// A range of a growing file has no last byte to put in a Content-Range yet
+			response.append(protocol + " 200 Ok\r\n");
+		} else {
+			response.append(protocol + " 206 Partial Content\r\n");
+		}
+		response.append(responseHeaders());
+		response.append("Content-Type: video/x-flv\r\n");
+		if (growing) {
+			// where the body starts in the file, e.g. for a relay resuming its copy
+			if (prefix == null && pos > 0)
+				response.append("X-Stream-Offset: " + pos + "\r\n");
+			// the final length of a growing file is unknown: chunked for HTTP/1.1, close delimited for HTTP/1.0
+			if (chunked)
+				response.append("Transfer-Encoding: chunked\r\n");
 		} else {
-			pw.append("HTTP/1.0 200 Ok\r\n");
-			pw.append(HTTP_RESPONSE);
-			pw.append("Content-Type: video/x-flv\r\n");
-			pw.append("Content-Length: " + size + "\r\n");
+			if (prefix == null && pos > 0)
+				response.append("Content-Range: bytes " + pos + "-" + (size - 1) + "/" + size + "\r\n");
+			response.append("Content-Length: " + ((prefix != null ? prefix.length : 0) + size - pos) + "\r\n");
 		}
-		pw.append("\r\n");
-		pw.flush();
+		response.append("\r\n");
+		writeHead(stream, response);
+		return chunked;
+	}
+
+	private long extractPosition(HttpRequest request, File file) {
+		String range = request.getRange();
+		if (range == null || range.contains("t="))
+			return 0;
+		int start = range.indexOf('=') + 1;
+		int end = range.indexOf('-', start);
+		return interpretPosition(range.substring(start, end >= 0 ? end : range.length()), file);
 	}
 
-	private List<String> readHeaders(BufferedReader in) throws IOException {
-		List<String> headers = new ArrayList<String>();
-		String line;
-		while ((line = in.readLine()) != null) {
-			if (line.length() <= 2)
-				break;
-			headers.add(line);
+	// "Range: bytes=50%-", -1 if the range isn't a percentage
+	private static double extractPercent(HttpRequest request) {
+		String range = request.getRange();
+		if (range == null || range.contains("t="))
+			return -1;
+		int start = range.indexOf('=') + 1;
+		int end = range.indexOf('%', start);
+		if (end < 0)
+			return -1;
+		try {
+			return Double.parseDouble(range.substring(start, end).trim());
+		} catch (NumberFormatException e) {
+			return -1;
 		}
-		return headers;
 	}
 
-	private long extractPosition(List<String> headers, File file) throws IOException {
-		String pos = "0";
-		for (String line : headers) {
-			if (line.startsWith("Range:") && line.contains("=")) {
-				pos = line.split("=")[1].split("[-]")[0];
-			}
+	// ?rate= can lower the limit of the endpoint, not raise it
+	private long extractRate(HttpRequest request, File file, long limit) {
+		String rate = request.getParameter("rate");
+		if (rate == null)
+			return limit;
+		long requested = interpretPosition(rate, file);
+		if (requested <= 0)
+			return limit;
+		return limit > 0 ? Math.min(limit, requested) : requested;
+	}
+
+	private long extractTime(HttpRequest request) {
+		String time = request.getParameter("t");
+		String range = request.getRange();
+		if (range != null && range.contains("t=")) {
+			int start = range.indexOf("t=") + 2;
+			int end = range.indexOf('-', start);
+			time = range.substring(start, end >= 0 ? end : range.length());
 		}
-		return interpretPosition(pos, file);
+		return time != null ? interpretTime(time) : -1;
 	}
 
-	private String extractUserAgent(List<String> headers) {
-		String useragent = "unknown";
-		for (String _line : headers) {
-			String line = _line.toLowerCase();
-			if (line.startsWith("user-agent:") && line.contains(" ")) {
-				useragent = line.split(" ", 2)[1].toLowerCase();
-				break;
+	private String extractUserAgent(HttpRequest request) {
+		String useragent = request.getUserAgent();
+		if (useragent == null)
+			return "unknown";
+		for (String product : USER_AGENT_PRODUCTS) {
+			int index = indexOfIgnoreCase(useragent, product);
+			if (index >= 0) {
+				int start = useragent.lastIndexOf(' ', index) + 1;
+				int end = useragent.indexOf(' ', index);
+				return useragent.substring(start, end >= 0 ? end : useragent.length()).toLowerCase();
 			}
 		}
-		if (useragent.contains("curl")) {
-			useragent = extractElementThatContains(useragent.split(" "), "curl", "curl");
-		}
-		if (useragent.contains("wget")) {
-			useragent = extractElementThatContains(useragent.split(" "), "wget", "wget");
-		}
-		if (useragent.contains("chrome")) {
-			useragent = extractElementThatContains(useragent.split(" "), "chrome", "chrome");
-		}
-		if (useragent.contains("firefox")) {
-			useragent = extractElementThatContains(useragent.split(" "), "firefox", "firefox");
+		return useragent.toLowerCase();
+	}
+
+	private static int indexOfIgnoreCase(String str, String find) {
+		for (int i = 0; i + find.length() <= str.length(); ++i) {
+			if (str.regionMatches(true, i, find, 0, find.length()))
+				return i;
 		}
-		return useragent;
+		return -1;
 	}
 
-	private String extractElementThatContains(String[] splitted, String find, String _default) {
-		for (String elem : splitted) {
-			if (elem.contains(find)) {
-				return elem;
+	private static long interpretTime(String str) {
+		int numberEnd = numberEnd(str);
+		String unit = str.substring(numberEnd).trim();
+		try {
+			double number = Double.parseDouble(str.substring(0, numberEnd));
+			if (unit.equalsIgnoreCase("ms")) {
+				return (long) number;
+			} else if (unit.equalsIgnoreCase("h")) {
+				return (long) (number * 3600 * 1000);
+			} else if (unit.equalsIgnoreCase("m") || unit.equalsIgnoreCase("min")) {
+				return (long) (number * 60 * 1000);
+			} else {
+				return (long) (number * 1000);
 			}
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid time: " + str);
+			return -1;
+		}
+	}
+
+	static long interpretPosition(String str, File file) {
+		int numberEnd = numberEnd(str);
+		String unit = str.substring(numberEnd).trim();
+		double number;
+		try {
+			number = Double.parseDouble(str.substring(0, numberEnd));
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid position: " + str);
+			return 0;
 		}
-		return _default;
-	}
-
-	private static long interpretPosition(String str, File file) {
-		str = str.toLowerCase();
-		long pos = 0;
-		if (str.endsWith("%")) {
-			double percent = Double.parseDouble(str.replaceAll("%", "")) / 100;
-			long size = file.length();
-			pos = (long) (size * percent);
-		} else if (str.endsWith("k") || str.endsWith("kb")) {
-			pos = 1000 * Long.parseLong(str.replaceAll("[^0-9.]", ""));
-		} else if (str.endsWith("kib")) {
-			pos = 1024 * Long.parseLong(str.replaceAll("[^0-9.]", ""));
-		} else if (str.endsWith("m") || str.endsWith("mb")) {
-			pos = 1000 * 1000 * Long.parseLong(str.replaceAll("[^0-9.]", ""));
-		} else if (str.endsWith("mib")) {
-			pos = 1024 * 1024 * Long.parseLong(str.replaceAll("[^0-9.]", ""));
-		} else if (str.endsWith("g") || str.endsWith("gb")) {
-			pos = 1000 * 1000 * 1000 * Long.parseLong(str.replaceAll("[^0-9.]", ""));
-		} else if (str.endsWith("gib")) {
-			pos = 1024 * 1024 * 1024 * Long.parseLong(str.replaceAll("[^0-9.]", ""));
+		long pos;
+		if (unit.equals("%")) {
+			pos = (long) (file.length() * number / 100);
+		} else if (unit.equalsIgnoreCase("k") || unit.equalsIgnoreCase("kb")) {
+			pos = (long) (1000 * number);
+		} else if (unit.equalsIgnoreCase("kib")) {
+			pos = (long) (1024 * number);
+		} else if (unit.equalsIgnoreCase("m") || unit.equalsIgnoreCase("mb")) {
+			pos = (long) (1000 * 1000 * number);
+		} else if (unit.equalsIgnoreCase("mib")) {
+			pos = (long) (1024 * 1024 * number);
+		} else if (unit.equalsIgnoreCase("g") || unit.equalsIgnoreCase("gb")) {
+			pos = (long) (1000 * 1000 * 1000 * number);
+		} else if (unit.equalsIgnoreCase("gib")) {
+			pos = (long) (1024 * 1024 * 1024 * number);
 		} else {
-			try {
-				pos = Long.parseLong(str);
-			} catch (Exception e) {
-				e.printStackTrace();
-				pos = 0;
-			}
+			pos = (long) number;
 		}
 		return pos;
 	}
-}
\ No newline at end of file
+
+	// whether interpretPosition understands all of the string: a number and maybe one of its units
+	static boolean isPosition(String str) {
+		int numberEnd = numberEnd(str);
+		if (numberEnd == 0)
+			return false;
+		try {
+			Double.parseDouble(str.substring(0, numberEnd));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		String unit = str.substring(numberEnd).trim().toLowerCase();
+		return unit.isEmpty() || POSITION_UNITS.contains(unit);
+	}
+
+	private static int numberEnd(String str) {
+		int i = 0;
+		while (i < str.length() && (Character.isDigit(str.charAt(i)) || str.charAt(i) == '.'))
+			++i;
+		return i;
+	}
+}
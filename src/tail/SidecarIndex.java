@@ -0,0 +1,122 @@
+package tail;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+// keyframe index of a finished recording in <directory>/.tailindex/<name>.kfi, memory-mapped when opened:
+// the recording's length and modification time, the duration, the stream prefix parts, then the keyframe
+// offsets (long) and timestamps (int)
+final class SidecarIndex {
+
+	private static final int MAGIC = 0x544b4649;
+	private static final int VERSION = 1;
+
+	final long duration;
+	final byte[][] prefix;
+	final int keyframes;
+	private final LongBuffer offsets;
+	private final IntBuffer timestamps;
+
+	private SidecarIndex(ByteBuffer map) {
+		duration = map.getLong();
+		keyframes = map.getInt();
+		prefix = new byte[4][];
+		for (int i = 0; i < prefix.length; i++) {
+			int length = map.getInt();
+			if (length >= 0) {
+				prefix[i] = new byte[length];
+				map.get(prefix[i]);
+			}
+		}
+		offsets = map.slice().asLongBuffer();
+		map.position(map.position() + keyframes * 8);
+		timestamps = map.slice().asIntBuffer();
+	}
+
+	static File fileFor(File recording) {
+		return new File(new File(recording.getParentFile(), TailServer.INDEX_DIRECTORY), recording.getName() + ".kfi");
+	}
+
+	// null if there is none or it was written for another version of the recording
+	static SidecarIndex open(File recording) {
+		File file = fileFor(recording);
+		if (!file.isFile())
+			return null;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			ByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (map.getInt() != MAGIC || map.getInt() != VERSION || map.getLong() != recording.length()
+					|| map.getLong() != recording.lastModified())
+				return null;
+			SidecarIndex index = new SidecarIndex(map);
+			if (index.offsets.limit() < index.keyframes || index.timestamps.limit() < index.keyframes)
+				return null;
+			return index;
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// truncated or damaged, it gets rebuilt
+			return null;
+		} finally {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	// written next to the index and moved over it, readers never see half of one
+	static void write(File recording, long length, long modified, long duration, byte[][] prefix, long[] offsets,
+			long[] timestamps, int keyframes) throws IOException {
+		File file = fileFor(recording);
+		File temp = new File(file.getPath() + ".tmp");
+		file.getParentFile().mkdirs();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(length);
+			out.writeLong(modified);
+			out.writeLong(duration);
+			out.writeInt(keyframes);
+			for (byte[] part : prefix) {
+				out.writeInt(part != null ? part.length : -1);
+				if (part != null)
+					out.write(part);
+			}
+			for (int i = 0; i < keyframes; i++)
+				out.writeLong(offsets[i]);
+			for (int i = 0; i < keyframes; i++)
+				out.writeInt((int) timestamps[i]);
+		} catch (IOException e) {
+			out.close();
+			temp.delete();
+			throw e;
+		}
+		out.close();
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static void delete(File recording) {
+		fileFor(recording).delete();
+	}
+
+	long offset(int i) {
+		return offsets.get(i);
+	}
+
+	long timestamp(int i) {
+		return timestamps.get(i) & 0xffffffffL;
+	}
+}
@@ -0,0 +1,167 @@
+package tail;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+// validators and byte ranges for recordings that don't grow anymore
+class StaticFile {
+
+	// more ranges than this are served as the whole file
+	private static final int MAX_RANGES = 32;
+
+	public static String etag(File file) {
+		return "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length()) + "\"";
+	}
+
+	public static String formatDate(long millis) {
+		return dateFormat().format(new Date(millis));
+	}
+
+	// -1 if the date can't be parsed
+	public static long parseDate(String date) {
+		try {
+			return dateFormat().parse(date).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	// SimpleDateFormat isn't thread safe
+	private static SimpleDateFormat dateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format;
+	}
+
+	public static boolean isNotModified(HttpRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getIfNoneMatch();
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/"))
+					tag = tag.substring(2);
+				if (tag.equals("*") || tag.equals(etag))
+					return true;
+			}
+			return false;
+		}
+		String ifModifiedSince = request.getIfModifiedSince();
+		if (ifModifiedSince != null) {
+			long since = parseDate(ifModifiedSince);
+			return since >= 0 && lastModified / 1000 <= since / 1000;
+		}
+		return false;
+	}
+
+	// a Range with an outdated If-Range gets the whole file
+	public static boolean isRangeValid(HttpRequest request, String etag, long lastModified) {
+		String ifRange = request.getIfRange();
+		if (ifRange == null)
+			return true;
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return ifRange.equals(etag);
+		long date = parseDate(ifRange);
+		return date >= 0 && date / 1000 == lastModified / 1000;
+	}
+
+	// start and end (inclusive) of each satisfiable range, sorted and with overlapping or adjacent ranges
+	// merged; an empty array if none is satisfiable or null if the header is ignored. Positions may use the
+	// units of ServerThread.interpretPosition, like "bytes=50%-"
+	public static long[] parseRanges(String header, File file) {
+		long size = file.length();
+		int equals = header.indexOf('=');
+		if (equals < 0 || !header.substring(0, equals).trim().equalsIgnoreCase("bytes"))
+			return null;
+		String[] specs = header.substring(equals + 1).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+		long[] ranges = new long[specs.length * 2];
+		int count = 0;
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0)
+				return null;
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			// one spec that isn't a position voids the whole header, like a syntax error
+			if (!first.isEmpty() && !ServerThread.isPosition(first) || !last.isEmpty()
+					&& !ServerThread.isPosition(last))
+				return null;
+			long start;
+			long end;
+			if (first.isEmpty()) {
+				// suffix range: the last n bytes
+				if (last.isEmpty())
+					return null;
+				long suffix = ServerThread.interpretPosition(last, file);
+				if (suffix <= 0)
+					continue;
+				start = Math.max(0, size - suffix);
+				end = size - 1;
+			} else {
+				start = ServerThread.interpretPosition(first, file);
+				end = last.isEmpty() ? size - 1 : Math.min(size - 1, ServerThread.interpretPosition(last, file));
+				if (end < start && !last.isEmpty() && start < size)
+					return null;
+			}
+			if (start >= size)
+				continue;
+			ranges[count++] = start;
+			ranges[count++] = end;
+		}
+		return merge(ranges, count);
+	}
+
+	// sorts the first count / 2 ranges by their start and joins the ones that overlap or touch
+	private static long[] merge(long[] ranges, int count) {
+		for (int i = 2; i < count; i += 2) {
+			long start = ranges[i];
+			long end = ranges[i + 1];
+			int j = i - 2;
+			for (; j >= 0 && ranges[j] > start; j -= 2) {
+				ranges[j + 2] = ranges[j];
+				ranges[j + 3] = ranges[j + 1];
+			}
+			ranges[j + 2] = start;
+			ranges[j + 3] = end;
+		}
+		int merged = 0;
+		for (int i = 0; i < count; i += 2) {
+			if (merged > 0 && ranges[i] <= ranges[merged - 1] + 1) {
+				ranges[merged - 1] = Math.max(ranges[merged - 1], ranges[i + 1]);
+			} else {
+				ranges[merged++] = ranges[i];
+				ranges[merged++] = ranges[i + 1];
+			}
+		}
+		long[] result = new long[merged];
+		System.arraycopy(ranges, 0, result, 0, merged);
+		return result;
+	}
+
+	// what goes in front of each part of a multipart/byteranges body
+	public static String[] partHeaders(String boundary, long[] ranges, long size) {
+		String[] headers = new String[ranges.length / 2];
+		for (int i = 0; i < ranges.length; i += 2)
+			headers[i / 2] = "\r\n--" + boundary + "\r\nContent-Type: video/x-flv\r\nContent-Range: bytes "
+					+ ranges[i] + "-" + ranges[i + 1] + "/" + size + "\r\n\r\n";
+		return headers;
+	}
+
+	public static String multipartEnd(String boundary) {
+		return "\r\n--" + boundary + "--\r\n";
+	}
+
+	// the Content-Length of a multipart/byteranges body: part headers, ranges and the closing boundary
+	public static long multipartLength(String boundary, String[] partHeaders, long[] ranges) {
+		long length = multipartEnd(boundary).length();
+		for (int i = 0; i < ranges.length; i += 2)
+			length += partHeaders[i / 2].length() + ranges[i + 1] - ranges[i] + 1;
+		return length;
+	}
+}
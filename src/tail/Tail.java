@@ -1,76 +1,437 @@
 package tail;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 class Tail {
 
+	// streams the watchdog looks after
+	private static final Set<Tail> active = Collections.newSetFromMap(new ConcurrentHashMap<Tail, Boolean>());
+	private static Thread watchdog = null;
+	// upper bound of one transferTo, so the backpressure policy and the watchdog see progress
+	private static final long TRANSFER_SLICE = 1024 * 1024;
+
 	private Socket socket;
-	private BufferedOutputStream stream;
+	private OutputStream stream;
 	private Client client;
 	private long size;
+	// cleared when a write fails or the client gets dropped, so checking it costs nothing
+	private volatile boolean connected = true;
+	// start of the write the stream is blocked in, 0 if it isn't writing
+	private volatile long writeStarted = 0;
+	// smallest distance to the end of the file since the start or the last skip
+	private long minimumLag = Long.MAX_VALUE;
+	// keyframe at which the stream jumps to the newest keyframe, -1 if it doesn't
+	private long skipAt = -1;
+	// per client rate limit, null if there is none
+	private TokenBucket bucket = null;
+	// exact copies (relays) must never jump, only the stall watchdog applies to them
+	private boolean exact = false;
 
-	public Tail(Socket socket, BufferedOutputStream stream, Client client) {
+	public Tail(Socket socket, OutputStream stream, Client client) {
 		this.socket = socket;
 		this.stream = stream;
 		this.client = client;
+		this.size = client.getBytesSent();
+	}
+
+	public void setExact(boolean exact) {
+		this.exact = exact;
+	}
+
+	public void setRateLimit(long rate) {
+		bucket = rate > 0 ? new TokenBucket(rate) : null;
+		client.setTokenBucket(bucket);
 	}
 
 	private void tail(File file, long pos) {
-		BufferedInputStream input = null;
+		ReadableByteChannel input = null;
+		final ByteBuffer buffer = BufferPool.acquire(BufferPool.MEDIUM);
+		// the socket is written directly, only headers and chunk framing go through the stream
+		WritableByteChannel target = socket.getChannel();
+		ChunkedOutputStream chunked = stream instanceof ChunkedOutputStream ? (ChunkedOutputStream) stream : null;
+		if (target == null) {
+			target = Channels.newChannel(stream);
+			chunked = null;
+		}
 		try {
-			input = new BufferedInputStream(new ReadStandard().open(file, pos));
-			final byte[] buffer = new byte[32768];
+			InputStream raw = new ReadStandard().open(file, pos);
+			Broadcaster.Cursor cursor = raw instanceof Broadcaster.Cursor ? (Broadcaster.Cursor) raw : null;
+			input = channel(raw);
 			long fixedsize = TailDirectory.isFileGrowing(file) ? 0 : file.length();
-			while (isConnected(socket)) {
-				if (fixedsize > 0 && size >= fixedsize)
+			long position = pos;
+			while (connected) {
+				if (fixedsize > 0 && position >= fixedsize)
 					break;
 				if (fixedsize == 0 && TailDirectory.isFileNotGrowingSince(file))
 					break;
 				try {
-					for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
-						stream.write(buffer, 0, read);
+					for (int read = read(input, buffer, file, position, fixedsize == 0); read >= 0; read = read(
+							input, buffer, file, position, fixedsize == 0)) {
+						write(target, chunked, buffer);
+						position += read;
 						size += read;
 						client.setContentLength(size);
+						client.setPosition(position);
+						if (fixedsize == 0) {
+							long length = TailDirectory.getFileSize(file);
+							observeLag(file, position, length);
+							if (!checkBackpressure(file, position, length))
+								break;
+						}
+						if (position == skipAt) {
+							position = skip(file, position);
+							input.close();
+							raw = new ReadStandard().open(file, position);
+							cursor = raw instanceof Broadcaster.Cursor ? (Broadcaster.Cursor) raw : null;
+							input = channel(raw);
+						}
 					}
 				} catch (SocketException e) {
 					break;
 				} catch (IOException e1) {
-					e1.printStackTrace();
+					if (connected)
+						e1.printStackTrace();
 					break;
 				}
+				if (!connected)
+					break;
 
-				if (!TailServer.sleep(TailServer.TAIL_SLEEP_INTERVAL)) {
+				try {
+					writeStarted = System.currentTimeMillis();
+					stream.flush();
+					writeStarted = 0;
+				} catch (IOException e) {
+					connected = false;
+					break;
+				}
+				boolean awaited = cursor != null ? cursor.await(TailServer.TAIL_WAIT_TIMEOUT) : TailDirectory
+						.awaitGrowth(file, position, TailServer.TAIL_WAIT_TIMEOUT);
+				if (!awaited) {
 					System.out.println("Tail thread interrupted :(");
 					break;
 				}
 			}
-			input.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		try {
 			input.close();
 		} catch (Exception e1) {}
+		BufferPool.release(buffer);
+	}
+
+	// file streams and the mapped and broadcast readers fill buffers without a copy through the heap
+	private static ReadableByteChannel channel(InputStream input) {
+		if (input instanceof ReadableByteChannel)
+			return (ReadableByteChannel) input;
+		if (input instanceof FileInputStream)
+			return ((FileInputStream) input).getChannel();
+		return Channels.newChannel(input);
+	}
+
+	private long tailTransfer(File file, long pos, SocketChannel target) {
+		FileChannel channel = null;
+		ChunkedOutputStream chunked = stream instanceof ChunkedOutputStream ? (ChunkedOutputStream) stream : null;
+		boolean inChunk = false;
+		long position = pos;
+		try {
+			channel = new ReadChannel().openChannel(file, pos);
+			stream.flush();
+			long fixedsize = TailDirectory.isFileGrowing(file) ? 0 : file.length();
+			while (connected) {
+				if (fixedsize > 0 && position >= fixedsize)
+					break;
+				if (fixedsize == 0 && TailDirectory.isFileNotGrowingSince(file))
+					break;
+				for (long available = channel.size() - position; available > 0 && connected; available = channel
+						.size() - position) {
+					if (fixedsize == 0 && !checkBackpressure(file, position, position + available))
+						break;
+					if (position == skipAt) {
+						position = skip(file, position);
+						continue;
+					}
+					long length = position + available;
+					boolean live = fixedsize == 0 && available <= TailServer.LIVE_EDGE;
+					available = acquire(Math.min(allowed(position, available), TRANSFER_SLICE), live);
+					writeStarted = System.currentTimeMillis();
+					if (chunked != null) {
+						// the whole announced chunk has to go out before the next chunk header
+						chunked.beginChunk(available);
+						chunked.flush();
+						inChunk = true;
+					}
+					for (long remaining = available; remaining > 0;) {
+						long sent = channel.transferTo(position, remaining, target);
+						if (sent <= 0)
+							throw new IOException("transferTo made no progress");
+						position += sent;
+						remaining -= sent;
+						size += sent;
+						client.setContentLength(size);
+						client.setPosition(position);
+					}
+					if (fixedsize == 0)
+						observeLag(file, position, length);
+					if (chunked != null) {
+						chunked.endChunk();
+						chunked.flush();
+						inChunk = false;
+					}
+					writeStarted = 0;
+				}
+
+				if (!TailDirectory.awaitGrowth(file, position, TailServer.TAIL_WAIT_TIMEOUT)) {
+					System.out.println("Tail thread interrupted :(");
+					break;
+				}
+			}
+			position = -1;
+		} catch (IOException e) {
+			// the response can't continue in the middle of a chunk
+			if (inChunk)
+				connected = false;
+			if (!inChunk && connected) {
+				System.out.println("transferTo failed, falling back to copy loop: " + e.getMessage());
+			} else {
+				position = -1;
+			}
+		}
+		try {
+			channel.close();
+		} catch (Exception e1) {}
+		return position;
+	}
+
+	private void write(WritableByteChannel target, ChunkedOutputStream chunked, ByteBuffer buffer)
+			throws IOException {
+		writeStarted = System.currentTimeMillis();
+		try {
+			if (chunked != null)
+				chunked.beginChunk(buffer.remaining());
+			stream.flush();
+			while (buffer.hasRemaining())
+				target.write(buffer);
+			if (chunked != null)
+				chunked.endChunk();
+		} catch (IOException e) {
+			connected = false;
+			throw e;
+		}
+		writeStarted = 0;
+	}
+
+	// reads as much as the skip point and the rate limits allow
+	// leaves the buffer flipped for writing
+	private int read(ReadableByteChannel input, ByteBuffer buffer, File file, long position, boolean growing)
+			throws IOException {
+		boolean live = growing && TailDirectory.getFileSize(file) - position <= TailServer.LIVE_EDGE;
+		int length = (int) acquire(allowed(position, buffer.capacity()), live);
+		buffer.clear();
+		buffer.limit(length);
+		int read = input.read(buffer);
+		buffer.flip();
+		release(length - Math.max(0, read));
+		return read;
+	}
+
+	// takes tokens from the client's and the global bucket, live viewers come first at the global one
+	private long acquire(long wanted, boolean live) {
+		long granted = bucket != null ? bucket.take(wanted, false) : wanted;
+		long shared = TokenBucket.global.take(granted, !live);
+		if (bucket != null)
+			bucket.refund(granted - shared);
+		return shared;
+	}
+
+	private void release(long unused) {
+		if (bucket != null)
+			bucket.refund(unused);
+		TokenBucket.global.refund(unused);
+	}
+
+	// bytes that may be sent before the stream has to jump ahead
+	private long allowed(long position, long length) {
+		return skipAt >= 0 ? Math.min(length, skipAt - position) : length;
+	}
+
+	// how far a viewer of a growing file is behind the recorder after a write, in bytes and in time
+	private void observeLag(File file, long position, long length) {
+		GrowthLog log = GrowthLog.forFile(file);
+		long appended = log.appendedBy(position);
+		if (appended < 0) {
+			// the stream got ahead of the monitor, the length has to be taken before the modification time
+			log.record(file.length(), file.lastModified());
+			appended = log.appendedBy(position);
+		}
+		long delay = appended >= 0 ? Math.max(0, System.currentTimeMillis() - appended) : -1;
+		client.observeLag(Math.max(0, Math.max(length, log.getLength()) - position), delay);
+	}
+
+	// applies the backpressure policy to a viewer of a growing file, returns false if it got dropped
+	private boolean checkBackpressure(File file, long position, long length) {
+		if (exact || skipAt >= 0 || TailServer.BACKPRESSURE.equals("none"))
+			return true;
+		long lag = length - position;
+		if (lag < minimumLag)
+			minimumLag = lag;
+		if (lag - minimumLag <= TailServer.BACKPRESSURE_LIMIT)
+			return true;
+
+		if (TailServer.BACKPRESSURE.equals("skip")) {
+			// only jump between tags, so the next keyframe has to be sent first
+			FlvIndex index = FlvIndex.forFile(file);
+			long next = index.isValid() ? index.keyframeAtOrAfter(position) : -1;
+			if (next >= 0 && index.keyframeAtOrBefore(Long.MAX_VALUE) > next) {
+				skipAt = next;
+				return true;
+			}
+		}
+		System.out.println("[-] Dropping slow client: " + client + " ("
+				+ TailServer.formatBytesHumanReadable(lag) + " behind)");
+		Metrics.slowClientDisconnects.incrementAndGet();
+		connected = false;
+		return false;
+	}
+
+	private long skip(File file, long position) {
+		long newest = FlvIndex.forFile(file).keyframeAtOrBefore(Long.MAX_VALUE);
+		System.out.println("Skipping slow client to the newest keyframe: " + client + " ("
+				+ TailServer.formatBytesHumanReadable(newest - position) + " ahead)");
+		Metrics.slowClientSkips.incrementAndGet();
+		skipAt = -1;
+		minimumLag = Long.MAX_VALUE;
+		client.setPosition(newest);
+		return newest;
+	}
+
+	public boolean isConnected() {
+		return connected;
 	}
 
-	private boolean isConnected(Socket socket) {
-		synchronized (socket) {
-			try {
-				socket.getOutputStream().write(new byte[] {}, 0, 0);
-			} catch (IOException e) {
-				return false;
+	// sends a part of a finished file, with sendfile where the socket allows it
+	public void send(File file, long start, long length) throws IOException {
+		client.setFile(file);
+		client.setPosition(start);
+		if (!TailServer.BACKPRESSURE.equals("none")) {
+			startWatchdog();
+			active.add(this);
+		}
+		FileChannel channel = new ReadChannel().openChannel(file, start);
+		SocketChannel target = TailServer.READ_MODE.equals("transfer") ? socket.getChannel() : null;
+		final ByteBuffer buffer = target == null ? BufferPool.acquire(BufferPool.MEDIUM) : null;
+		WritableByteChannel copyTarget = socket.getChannel() != null ? socket.getChannel() : Channels
+				.newChannel(stream);
+		try {
+			long position = start;
+			long end = start + length;
+			stream.flush();
+			while (position < end) {
+				long slice = acquire(Math.min(end - position, TRANSFER_SLICE), false);
+				writeStarted = System.currentTimeMillis();
+				try {
+					if (target != null) {
+						for (long remaining = slice; remaining > 0;) {
+							long sent = channel.transferTo(position + slice - remaining, remaining, target);
+							if (sent <= 0)
+								throw new IOException("transferTo made no progress");
+							remaining -= sent;
+						}
+					} else {
+						for (long remaining = slice; remaining > 0;) {
+							buffer.clear();
+							buffer.limit((int) Math.min(buffer.capacity(), remaining));
+							int read = channel.read(buffer, position + slice - remaining);
+							if (read < 0)
+								throw new IOException("File is shorter than expected: " + file);
+							buffer.flip();
+							while (buffer.hasRemaining())
+								copyTarget.write(buffer);
+							remaining -= read;
+						}
+					}
+				} catch (IOException e) {
+					connected = false;
+					throw e;
+				}
+				writeStarted = 0;
+				position += slice;
+				size += slice;
+				client.setContentLength(size);
+				client.setPosition(position);
 			}
+		} finally {
+			active.remove(this);
+			channel.close();
+			BufferPool.release(buffer);
+		}
+	}
+
+	private static synchronized void startWatchdog() {
+		if (watchdog == null) {
+			watchdog = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (TailServer.sleep(1000)) {
+						long now = System.currentTimeMillis();
+						for (Tail tail : active) {
+							long started = tail.writeStarted;
+							if (started > 0 && now - started > TailServer.CLIENT_STALL_TIMEOUT)
+								tail.drop();
+						}
+					}
+				}
+			}, "Watchdog");
+			watchdog.setDaemon(true);
+			watchdog.start();
 		}
-		return true;
+	}
+
+	// unblocks a write that doesn't make progress
+	private void drop() {
+		active.remove(this);
+		connected = false;
+		System.out.println("[-] Dropping stalled client: " + client);
+		Metrics.slowClientDisconnects.incrementAndGet();
+		try {
+			socket.close();
+		} catch (IOException e) {}
 	}
 
 	public void run(File file, long pos) {
 		client.setFile(file);
-		tail(file, pos);
+		client.setPosition(pos);
+		try {
+			socket.setSendBufferSize(TailServer.CLIENT_SEND_BUFFER);
+		} catch (SocketException e) {}
+		if (!TailServer.BACKPRESSURE.equals("none")) {
+			startWatchdog();
+			active.add(this);
+		}
+		try {
+			if (TailServer.READ_MODE.equals("transfer") && socket.getChannel() != null) {
+				pos = tailTransfer(file, pos, socket.getChannel());
+				if (pos < 0)
+					return;
+			}
+			tail(file, pos);
+		} finally {
+			active.remove(this);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -1,60 +1,95 @@
 package tail;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileNotFoundException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TailDirectory implements Runnable {
 
-	private static File RECORDING_DIR = null;
-	private static Map<String, Long> filesizes;
-	private static Map<String, Long> filesizeTimestamps;
-	private static Map<String, Boolean> growing;
-	private static boolean reset;
+	private static File[] RECORDING_DIRS = null;
+	// by absolute path, a name can be a recording in more than one root (the first one serves it).
+	// Only the monitor thread writes, Tail threads read without locks
+	private static volatile ConcurrentMap<String, FileState> states;
+	private static volatile boolean reset;
+	private static final GrowthNotifier notifier = new GrowthNotifier();
+	// every recording in the directories, one index per directory, created by the monitor
+	private static volatile DirectoryIndex[] indexes = new DirectoryIndex[0];
 
 	static {
 		init();
 	}
 
 	private static void init() {
-		if (filesizes != null && !filesizes.isEmpty() && filesizeTimestamps != null
-				&& !filesizeTimestamps.isEmpty() && growing != null && !growing.isEmpty()) {
+		if (states != null && !states.isEmpty()) {
 			System.out.println("[#] Reset...");
 		}
-		filesizes = new HashMap<String, Long>();
-		filesizeTimestamps = new HashMap<String, Long>();
-		growing = new HashMap<String, Boolean>();
+		states = new ConcurrentHashMap<String, FileState>();
+		for (DirectoryIndex index : indexes)
+			index.clear();
+		FlvIndex.reset();
+		GrowthLog.reset();
 		reset = false;
 	}
 
-	private static File CURRENT_FILE = null;
+	private static volatile File CURRENT_FILE = null;
+	// recordings that are (or recently were) being written, only used by the monitor thread
+	private final Set<File> tracked = new HashSet<File>();
+	private Set<File> discovered = new HashSet<File>();
+	// directories are usually on separate disks, so they are scanned in parallel
+	private ExecutorService scanners;
 
 	public void monitor() {
-		@SuppressWarnings("unused")
-		File recordingDirectory = TailDirectory.findRecordingDirectory();
+		File[] directories = TailDirectory.findRecordingDirectories();
+		DirectoryIndex[] created = new DirectoryIndex[directories.length];
+		for (int i = 0; i < directories.length; i++)
+			created[i] = new DirectoryIndex(directories[i], new File(new File(directories[i],
+					TailServer.INDEX_DIRECTORY), "catalog"));
+		indexes = created;
+		notifier.start(directories, created);
+		scanners = Executors.newFixedThreadPool(directories.length, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Scanner-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 
 		while (true) {
 			init();
+			tracked.clear();
 
 			File currentFile = null;
 			while (!reset) {
 				try {
-					File newerFile = lastFileModified();
-
-					if (currentFile == null || !newerFile.equals(currentFile)) {
-						setFileGrowing(currentFile, false);
+					File newerFile = scan();
 
+					// several recordings can grow at the same time, only switch to a newly started one
+					boolean switchFile = currentFile == null || !newerFile.equals(currentFile)
+							&& (!isFileGrowing(currentFile) || discovered.contains(newerFile));
+					if (switchFile) {
 						String size = TailServer.formatBytesHumanReadable(newerFile.length());
 						long age = System.currentTimeMillis() - newerFile.lastModified();
 						String formattedAge = TailServer.formatMilliSecondsHumanReadable(age);
 						boolean stopped = age > 10 * 3600 * 1000;
 						if (stopped) {
-							String name = newerFile.getName();
-							growing.put(name, false);
-							filesizeTimestamps.put(name, newerFile.lastModified());
-							filesizes.put(name, newerFile.length());
+							states.put(newerFile.getAbsolutePath(), new FileState(newerFile.length(), newerFile
+									.lastModified(), false));
 						}
 						System.out.println("[+] " + (stopped ? "Stopped stream" : "Stream") + " found: "
 								+ newerFile.getName() + " (filesize = " + size + ", \"last modified\" = "
@@ -64,12 +99,25 @@ public class TailDirectory implements Runnable {
 				} catch (FileNotFoundException e) {}
 
 				if (currentFile != null) {
-					setFileSize(currentFile);
-					setFileGrowing(currentFile);
+					tracked.add(currentFile);
 					CURRENT_FILE = currentFile;
 				}
+				for (Iterator<File> i = tracked.iterator(); i.hasNext();) {
+					File file = i.next();
+					if (!isIndexed(file)) {
+						i.remove();
+						continue;
+					}
+					setFileSize(file);
+					setFileGrowing(file);
+					FlvIndex.forFile(file).update();
+					if (!isFileGrowing(file) && !file.equals(currentFile)) {
+						i.remove();
+						GrowthLog.forget(file);
+					}
+				}
 
-				TailServer.sleep(1000);
+				TailServer.sleep(TailServer.MONITOR_INTERVAL);
 			}
 
 		}
@@ -77,8 +125,7 @@ public class TailDirectory implements Runnable {
 
 	private void setFileGrowing(File file) {
 		if (file != null) {
-			final String name = file.getName();
-			long lastmodified = filesizeTimestamps.get(name);
+			long lastmodified = states.get(file.getAbsolutePath()).sizeTimestamp;
 			long now = System.currentTimeMillis();
 			if (now - lastmodified > TailServer.FILE_CHANGE_TIMEOUT) {
 				setFileGrowing(file, false);
@@ -98,57 +145,131 @@ public class TailDirectory implements Runnable {
 				System.out.println("[?] Fuck! This should never happen! " + file.getName() + " (filesize = "
 						+ TailServer.formatBytesHumanReadable(file.length()) + ")");
 			}
-			final String name = file.getName();
-			growing.put(name, isGrowing);
+			final String path = file.getAbsolutePath();
+			FileState state = states.get(path);
+			if (state == null)
+				states.put(path, new FileState(file.length(), file.lastModified(), isGrowing));
+			else if (state.growing != isGrowing)
+				states.put(path, state.withGrowing(isGrowing));
+			if (!isGrowing)
+				notifier.signal(file);
 		}
 	}
 
+	// files the monitor doesn't know (yet) are assumed to be growing
 	public static boolean isFileGrowing(File file) {
-		final String name = file.getName();
-		if (growing.containsKey(name)) {
-			return growing.get(name);
-		} else {
-			growing.put(name, true);
-			return true;
-		}
+		FileState state = states.get(file.getAbsolutePath());
+		return state == null || state.growing;
 	}
 
 	public static boolean isFileNotGrowingSince(File file) {
-		if (isFileGrowing(file)) {
+		FileState state = states.get(file.getAbsolutePath());
+		if (state == null || state.growing) {
 			return false;
 		} else {
-			return System.currentTimeMillis() - filesizeTimestamps.get(file.getName()) > 5000;
+			return System.currentTimeMillis() - state.sizeTimestamp > TailServer.FILE_CHANGE_TIMEOUT;
 		}
 	}
 
-	private static File lastFileModified() throws FileNotFoundException {
-		File directory = findRecordingDirectory();
+	// size as of the last monitor tick, without asking the file system
+	public static long getFileSize(File file) {
+		FileState state = states.get(file.getAbsolutePath());
+		return state != null ? state.size : file.length();
+	}
+
+	public static boolean awaitGrowth(File file, long length, long timeout) {
+		return notifier.await(file, length, timeout);
+	}
 
-		File[] files = directory.listFiles(new FileFilter() {
-			public boolean accept(File file) {
-				return file.isFile() && !file.getName().endsWith("_") && !file.getName().startsWith("Copy");
-			}
-		});
-		File choice = null;
-		if (files != null) {
-			long lastMod = Long.MIN_VALUE;
+	// applies the changes since the last tick and returns the most recently modified recording
+	private File scan() throws FileNotFoundException {
+		long now = System.currentTimeMillis();
+		discovered = new HashSet<File>();
 
-			for (File file : files) {
-				if (file.lastModified() > lastMod) {
-					choice = file;
-					lastMod = file.lastModified();
-				}
+		for (DirectoryIndex.Entry entry : update()) {
+			final File file = entry.file;
+			final String path = file.getAbsolutePath();
+			if (!states.containsKey(path)) {
+				discovered.add(file);
+				if (now - entry.modified > TailServer.FILE_CHANGE_TIMEOUT)
+					states.put(path, new FileState(entry.length, entry.modified, false));
+			}
+			if (now - entry.modified <= TailServer.FILE_CHANGE_TIMEOUT && tracked.add(file) && CURRENT_FILE != null
+					&& !file.equals(CURRENT_FILE)) {
+				System.out.println("[+] Recording: " + file.getName());
 			}
 		}
+		DirectoryIndex.Entry choice = null;
+		for (DirectoryIndex index : indexes) {
+			DirectoryIndex.Entry newest = index.getNewestEntry();
+			if (newest != null && (choice == null || newest.compareTo(choice) > 0))
+				choice = newest;
+		}
 		if (choice != null) {
-			return choice;
+			return choice.file;
 		} else {
 			throw new FileNotFoundException();
 		}
 	}
 
+	// returns the entries of all directories that are new or were modified since the last update
+	private List<DirectoryIndex.Entry> update() {
+		if (indexes.length == 1)
+			return indexes[0].update(notifier.isWatching(indexes[0]));
+
+		List<Future<List<DirectoryIndex.Entry>>> results = new ArrayList<Future<List<DirectoryIndex.Entry>>>();
+		for (final DirectoryIndex index : indexes) {
+			results.add(scanners.submit(new Callable<List<DirectoryIndex.Entry>>() {
+				public List<DirectoryIndex.Entry> call() {
+					return index.update(notifier.isWatching(index));
+				}
+			}));
+		}
+		List<DirectoryIndex.Entry> changed = new ArrayList<DirectoryIndex.Entry>();
+		for (Future<List<DirectoryIndex.Entry>> result : results) {
+			try {
+				changed.addAll(result.get());
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return changed;
+	}
+
+	// where the relay writes, the first recording directory
 	static File findRecordingDirectory() {
-		if (RECORDING_DIR == null) {
+		return findRecordingDirectories()[0];
+	}
+
+	static synchronized File[] findRecordingDirectories() {
+		if (RECORDING_DIRS == null && TailServer.UPSTREAM != null) {
+			File directory = new File("LocalRecordingRelay").getAbsoluteFile();
+			directory.mkdirs();
+			System.out.println("Relay directory: " + directory);
+			RECORDING_DIRS = new File[] { directory };
+		}
+		if (RECORDING_DIRS == null && TailServer.RECORDING_ROOTS != null) {
+			// a name that is a recording in more than one directory is served from the first one
+			List<File> directories = new ArrayList<File>();
+			for (String path : TailServer.RECORDING_ROOTS.split(File.pathSeparator)) {
+				if (path.trim().isEmpty())
+					continue;
+				File directory = new File(path.trim()).getAbsoluteFile();
+				if (directory.isDirectory()) {
+					directories.add(directory);
+					System.out.println("Recording directory: " + directory);
+				} else {
+					System.err.println("Error! Not a directory: " + directory);
+				}
+			}
+			if (!directories.isEmpty())
+				RECORDING_DIRS = directories.toArray(new File[directories.size()]);
+			System.out.println();
+		}
+		if (RECORDING_DIRS == null) {
 			File directory = new File(".").getAbsoluteFile();
 			System.out.println("Current directory is " + directory);
 
@@ -159,10 +280,10 @@ public class TailDirectory implements Runnable {
 					System.out.println("Recording directory found: " + directory);
 				}
 			}
-			RECORDING_DIR = directory;
+			RECORDING_DIRS = new File[] { directory };
 			System.out.println();
 		}
-		return RECORDING_DIR;
+		return RECORDING_DIRS;
 	}
 
 	@Override
@@ -171,12 +292,44 @@ public class TailDirectory implements Runnable {
 	}
 
 	private static void setFileSize(File file) {
-		final String name = file.getName();
+		final String path = file.getAbsolutePath();
 		final long length = file.length();
-		if (!filesizes.containsKey(name) || filesizes.get(name) != length) {
-			filesizeTimestamps.put(name, System.currentTimeMillis());
-			filesizes.put(name, length);
+		FileState state = states.get(path);
+		if (state == null || state.size != length)
+			GrowthLog.forFile(file).record(length, file.lastModified());
+		if (state == null) {
+			states.put(path, new FileState(length, System.currentTimeMillis(), true));
+		} else if (state.size != length) {
+			states.put(path, state.withSize(length, System.currentTimeMillis()));
+		}
+	}
+
+	public static File getRecording(String name) {
+		for (DirectoryIndex index : indexes) {
+			File file = index.get(name);
+			if (file != null)
+				return file;
 		}
+		return null;
+	}
+
+	// whether the file is (still) in the index of its directory, even if an earlier root has its name
+	private static boolean isIndexed(File file) {
+		for (DirectoryIndex index : indexes) {
+			if (file.equals(index.get(file.getName())))
+				return true;
+		}
+		return false;
+	}
+
+	public static List<String> getRecordingNames() {
+		DirectoryIndex[] indexes = TailDirectory.indexes;
+		if (indexes.length == 1)
+			return indexes[0].getNames();
+		Set<String> names = new TreeSet<String>();
+		for (DirectoryIndex index : indexes)
+			names.addAll(index.getNames());
+		return new ArrayList<String>(names);
 	}
 
 	public static File getCurrentStreamFile() throws FileNotFoundException {
@@ -5,9 +5,11 @@ import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.File;
-import java.io.OutputStream;
-import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.swing.Box;
 import javax.swing.JFrame;
@@ -16,22 +18,26 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
 
-class TailGui implements ClientList {
+class TailGui implements ClientListener {
 	JTextArea area = new JTextArea(20, 50);
 	JFrame window = new JFrame("Tail");
 	Box clients = Box.createVerticalBox();
+	Map<Client, ClientBox> boxes = new HashMap<Client, ClientBox>();
 
-	public TailGui() {
+	LogProvider log;
+	long logOffset = 0;
+
+	public TailGui(LogProvider log) {
+		this.log = log;
 		Font font = new Font("Monospaced", Font.PLAIN, 12);
 		area.setFont(font);
+		area.setEditable(false);
 		JScrollPane pane = new JScrollPane(area);
 		window.getContentPane().add(BorderLayout.CENTER, pane);
 		window.getContentPane().add(BorderLayout.SOUTH, clients);
-
-		PrintStream windowStream = new PrintStream(new JTextAreaOutputStream(area));
-		System.setOut(windowStream);
-		System.setErr(windowStream);
 	}
 
 	public void runGui() {
@@ -42,19 +48,60 @@ class TailGui implements ClientList {
 		int y = (int) ((dimension.getHeight() - window.getHeight()) / 2);
 		window.setLocation(x, y);
 		window.setVisible(true);
+
+		// one timer on the event dispatch thread refreshes all client boxes
+		new Timer((int) TailServer.GUI_UPDATE_INTERVAL, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				for (ClientBox box : boxes.values())
+					box.update();
+			}
+		}).start();
+		new Timer((int) TailServer.GUI_LOG_INTERVAL, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				updateLog();
+			}
+		}).start();
+	}
+
+	// only the tail of the log store is rendered
+	private void updateLog() {
+		StringBuilder lines = new StringBuilder();
+		logOffset = log.getLog(logOffset, lines);
+		if (lines.length() == 0)
+			return;
+		area.append(lines.toString());
+		int excess = area.getLineCount() - TailServer.GUI_LOG_LINES;
+		if (excess > 0) {
+			try {
+				area.replaceRange("", 0, area.getLineStartOffset(excess));
+			} catch (BadLocationException e) {}
+		}
+		area.setCaretPosition(area.getDocument().getLength());
 	}
 
 	@Override
-	public Client newClient() {
-		TailGui.ClientBox client = new ClientBox();
-		clients.add(client.getBox());
-		repaint(clients);
-		return client;
+	public void clientAdded(final Client client) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				ClientBox box = new ClientBox(client);
+				boxes.put(client, box);
+				clients.add(box.getBox());
+				repaint(clients);
+			}
+		});
 	}
 
 	@Override
-	public void removeClient(Client client) {
-		clients.remove(((TailGui.ClientBox) client).getBox());
+	public void clientRemoved(final Client client) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				ClientBox box = boxes.remove(client);
+				if (box != null) {
+					clients.remove(box.getBox());
+					repaint(clients);
+				}
+			}
+		});
 	}
 
 	private static void repaint(final Component component) {
@@ -66,26 +113,20 @@ class TailGui implements ClientList {
 		});
 	}
 
-	public static class ClientBox implements Client, Runnable {
+	public static class ClientBox {
 		Box box = Box.createHorizontalBox();
 
 		private JTextField fieldName;
 		private JTextField fieldSize;
 		private JTextField fieldSpeed;
+		private JTextField fieldLag;
 		private JTextField fieldFile;
 
-		private String host;
-		private int port;
-		private long size = 0;
-		private double speed = 0;
-		@SuppressWarnings("unused")
-		private File file;
+		private final Client client;
 
-		private boolean connected;
-		private long startTime;
-		private long stopTime;
+		public ClientBox(Client client) {
+			this.client = client;
 
-		public ClientBox() {
 			box.add(new JLabel("Client:"));
 			box.add(Box.createHorizontalStrut(15));
 			fieldName = new JTextField();
@@ -107,123 +148,35 @@ class TailGui implements ClientList {
 			box.add(fieldSpeed);
 			box.add(Box.createHorizontalStrut(15));
 
+			box.add(new JLabel("Lag:"));
+			box.add(Box.createHorizontalStrut(15));
+			fieldLag = new JTextField();
+			fieldLag.setEditable(false);
+			box.add(fieldLag);
+			box.add(Box.createHorizontalStrut(15));
+
 			box.add(new JLabel("File:"));
 			box.add(Box.createHorizontalStrut(15));
 			fieldFile = new JTextField();
 			fieldFile.setEditable(false);
 			fieldFile.setPreferredSize(new Dimension(200, fieldSize.getPreferredSize().height));
 			box.add(fieldFile);
-			repaint(box);
-
-			new Thread(this).start();
-			startTime = System.currentTimeMillis();
-		}
-
-		public String toString() {
-			return host + ":" + port;
-		}
-
-		@Override
-		public void setRemoteHost(String host) {
-			this.host = host;
-			fieldName.setText(host + ":" + port);
-		}
-
-		@Override
-		public void setRemotePort(int port) {
-			this.port = port;
-			fieldName.setText(host + ":" + port);
-		}
-
-		@Override
-		public void setContentLength(long size) {
-			this.size = size;
-		}
-
-		@Override
-		public void setFile(File file) {
-			this.file = file;
-			fieldFile.setText(file.getName());
+			update();
 		}
 
 		public Component getBox() {
 			return box;
 		}
 
-		@Override
-		public void run() {
-			long ticks = 0;
-			connected = true;
-			while (connected) {
-				updateSize();
-				updateSpeed();
-				if (ticks % 50 == 0)
-					repaint(box);
-
-				TailServer.sleep(TailServer.GUI_UPDATE_INTERVAL);
-				++ticks;
-			}
-		}
-
-		private void updateSize() {
-			fieldSize.setText(TailServer.formatBytesHumanReadable(size));
-		}
-
-		long previousSize = 0;
-		long previousTime = 0;
-
-		private void updateSpeed() {
-			long time = System.currentTimeMillis();
-			if (previousTime != 0 && previousSize != 0) {
-				double currentSpeed = (size - previousSize) / (time - previousTime) * 1000;
-				speed = speed / 2 + currentSpeed / 2;
-				if (currentSpeed == 0)
-					speed = 0;
-				fieldSpeed.setText(TailServer.formatBytesHumanReadable(speed) + "/s");
-			}
-			previousTime = time;
-			previousSize = size;
-		}
-
-		@Override
-		public String getAverageSpeed() {
-			return TailServer.formatBytesHumanReadable(size / (stopTime - startTime) * 1000) + "/s";
-		}
-
-		@Override
-		public String getSize() {
-			return TailServer.formatBytesHumanReadable(size);
-		}
-
-		@Override
-		public void disconnect() {
-			connected = false;
-			stopTime = System.currentTimeMillis();
-		}
-	}
-
-	public static class JTextAreaOutputStream extends OutputStream implements LogProvider {
-		JTextArea ta;
-
-		public JTextAreaOutputStream(JTextArea t) {
-			super();
-			ta = t;
-			TailServer.setLogProvider(this);
-		}
-
-		public void write(int i) {
-			ta.append(Character.toString((char) i));
-		}
-
-		@SuppressWarnings("unused")
-		public void write(char[] buf, int off, int len) {
-			String s = new String(buf, off, len);
-			ta.append(s);
-		}
-
-		@Override
-		public String getLog() {
-			return ta.getText();
+		public void update() {
+			fieldName.setText(client.toString());
+			fieldSize.setText(client.getSize());
+			long limit = client.getRateLimit();
+			fieldSpeed.setText(TailServer.formatBytesHumanReadable(client.getThroughput()) + "/s"
+					+ (limit > 0 ? " (max " + TailServer.formatBytesHumanReadable(limit) + "/s)" : ""));
+			fieldLag.setText(client.getLagSummary());
+			File file = client.getFile();
+			fieldFile.setText(file != null ? file.getName() : "");
 		}
 	}
 }
\ No newline at end of file
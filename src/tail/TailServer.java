@@ -1,32 +1,118 @@
 package tail;
 
+import java.awt.GraphicsEnvironment;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 
 public class TailServer {
 
-	private static final int PORT = 8081;
-	static final long TAIL_SLEEP_INTERVAL = 200;
-	static final long GUI_UPDATE_INTERVAL = 1000;
-	static final long FILE_CHANGE_TIMEOUT = 5000;
-	static final long MAX_FILE_LENGTH = 5L * 1024L * 1024L * 1024L;
+	private static final int PORT = Integer.getInteger("tail.port", 8081);
+	// recording directories, separated like a class path; by default the LocalRecording* folder in the
+	// current directory
+	static final String RECORDING_ROOTS = System.getProperty("tail.roots");
+	// catalogs and keyframe indexes are kept in this folder of every recording directory
+	static final String INDEX_DIRECTORY = ".tailindex";
+	static final long TAIL_WAIT_TIMEOUT = Long.getLong("tail.wait", 5000);
+	static final long GUI_UPDATE_INTERVAL = Long.getLong("tail.gui.interval", 1000);
+	static final long GUI_LOG_INTERVAL = Long.getLong("tail.gui.log.interval", 250);
+	static final int GUI_LOG_LINES = 1000;
+	static final int LOG_LINES = Integer.getInteger("tail.log.lines", 10000);
+	// a recording that hasn't changed for this long has stopped
+	static final long FILE_CHANGE_TIMEOUT = Long.getLong("tail.file.timeout", 5000);
+	// how often the monitor looks at the recordings, and how often file sizes are checked when the file
+	// system has no events (or as a safety net when it has)
+	static final long MONITOR_INTERVAL = Long.getLong("tail.monitor.interval", 1000);
+	static final long POLL_INTERVAL = Long.getLong("tail.poll.interval", 100);
+	static final long POLL_SAFETY_INTERVAL = Long.getLong("tail.poll.safety", 1000);
+	// full directory scan to catch events the watcher missed
+	static final long DIRECTORY_RECONCILE_INTERVAL = Long.getLong("tail.reconcile", 60000);
+	static final long KEEP_ALIVE_TIMEOUT = Long.getLong("tail.keepalive", 15000);
+
+	// "transfer" streams with FileChannel.transferTo (sendfile), "copy" uses the old buffer loop,
+	// "broadcast" shares one reader and a ring buffer between all clients of a growing file
+	static final String READ_MODE = System.getProperty("tail.read", "transfer");
+	// "thread" hands every connection to its own thread, "selector" reads requests on one non-blocking
+	// selector thread and only starts a thread once a request is complete. The connection keeps that thread
+	// while it streams or waits for its next request, so on Java 21 and later these are virtual threads
+	// (tail.virtual=false for platform threads) and thousands of idle or slow viewers cost only heap
+	static final String ENGINE = System.getProperty("tail.engine", "thread");
+	static final boolean VIRTUAL_THREADS = !"false".equals(System.getProperty("tail.virtual"));
+	static final long THREAD_STACK_SIZE = Long.getLong("tail.stack", 256 * 1024);
+	static final int BROADCAST_BUFFER_SIZE = Integer.getInteger("tail.broadcast.buffer", 8 * 1024 * 1024);
+	// reads starting more than one window behind the end of a large file are served from memory maps
+	static final long MAPPED_THRESHOLD = Long.getLong("tail.mapped.threshold", 256L * 1024L * 1024L);
+	static final int MAPPED_WINDOW_SIZE = Integer.getInteger("tail.mapped.window", 64 * 1024 * 1024);
+	// viewers of a growing file that fall further behind than the limit "skip" to the newest keyframe,
+	// get disconnected or, with "none", are served at their own pace
+	static final String BACKPRESSURE = System.getProperty("tail.backpressure", "skip");
+	static final long BACKPRESSURE_LIMIT = Long.getLong("tail.backpressure.limit", 8L * 1024L * 1024L);
+	// kernel send buffer of a streaming client, and how long a blocked write may take before it is dropped
+	static final int CLIENT_SEND_BUFFER = Integer.getInteger("tail.client.buffer", 256 * 1024);
+	static final long CLIENT_STALL_TIMEOUT = Long.getLong("tail.client.stall", 30000);
+	// bytes per second for all streams together and per client (0 = unlimited), "/stream/<name>" has its own
+	// per client default; clients within LIVE_EDGE of the end of a growing file are served first
+	static final long BANDWIDTH_LIMIT = Long.getLong("tail.bandwidth", 0);
+	static final long CLIENT_RATE_LIMIT = Long.getLong("tail.rate", 0);
+	static final long STREAM_RATE_LIMIT = Long.getLong("tail.rate.stream", CLIENT_RATE_LIMIT);
+	static final long LIVE_EDGE = Long.getLong("tail.live.edge", 2L * 1024L * 1024L);
+	// largest group of pictures kept in memory for /live
+	static final int GOP_CACHE_SIZE = Integer.getInteger("tail.gop.cache", 16 * 1024 * 1024);
+	// relay mode mirrors another TailServer (host:port) into LocalRecordingRelay and keeps the newest recordings
+	static final String UPSTREAM = System.getProperty("tail.upstream");
+	static final int RELAY_KEEP = Integer.getInteger("tail.relay.keep", 3);
+	// keyframe indexes of finished recordings kept open, the others are reopened from their sidecar
+	static final int INDEX_CACHE_SIZE = Integer.getInteger("tail.index.cache", 64);
+	// direct memory the buffer pool may hold, "tail.buffers.debug" reports buffers that were never released
+	static final long BUFFER_POOL_SIZE = Long.getLong("tail.buffers", 32L * 1024L * 1024L);
+	static final boolean BUFFER_POOL_DEBUG = Boolean.getBoolean("tail.buffers.debug");
 
 	public static void main(String[] args) throws IOException {
-		TailGui gui = new TailGui();
-		gui.runGui();
+		ClientRegistry clients = new ClientRegistry();
+		LogStore log = new LogStore(LOG_LINES);
+		boolean headless = isHeadless(args);
+		PrintStream console = headless ? System.out : null;
+		PrintStream consoleErr = headless ? System.err : null;
+		System.setOut(new PrintStream(log.newOutputStream(console), true));
+		System.setErr(new PrintStream(log.newOutputStream(consoleErr), true));
+		if (headless) {
+			System.out.println("Running headless");
+		} else {
+			TailGui gui = new TailGui(log);
+			clients.addListener(gui);
+			gui.runGui();
+		}
+		if (UPSTREAM != null)
+			new Relay(UPSTREAM, TailDirectory.findRecordingDirectory()).start();
 		new Thread(new TailDirectory()).start();
-		new TailServer().runServer(gui);
+		new TailServer().runServer(clients);
+	}
+
+	private static boolean isHeadless(String[] args) {
+		for (String arg : args) {
+			if (arg.equals("--headless"))
+				return true;
+		}
+		return Boolean.getBoolean("tail.headless") || GraphicsEnvironment.isHeadless();
 	}
 
 	static LogProvider currentLogProvider = null;
 
 	private void runServer(ClientList clients) {
 		ServerSocket serverSocket = null;
-		boolean listening = true;
 
 		while (serverSocket == null) {
 			try {
-				serverSocket = new ServerSocket(PORT);
+				ServerSocketChannel serverChannel = ServerSocketChannel.open();
+				try {
+					serverChannel.socket().bind(new InetSocketAddress(PORT));
+				} catch (IOException e) {
+					serverChannel.close();
+					throw e;
+				}
+				serverSocket = serverChannel.socket();
 				System.out.println("Server listening on port: " + PORT);
 			} catch (IOException e) {
 				System.err.println("Could not listen on port: " + PORT + ".");
@@ -35,13 +121,12 @@ public class TailServer {
 			}
 		}
 
-		while (listening) {
-			try {
-				new Thread(new ServerThread(serverSocket.accept(), clients)).start();
-			} catch (IOException e) {
-				System.out.println("Error in accept loop!");
-				e.printStackTrace();
-			}
+		ConnectionEngine engine = ENGINE.equals("selector") ? new SelectorEngine() : new ThreadEngine();
+		try {
+			engine.serve(serverSocket.getChannel(), clients);
+		} catch (IOException e) {
+			System.out.println("Error in connection engine!");
+			e.printStackTrace();
 		}
 	}
 
@@ -0,0 +1,68 @@
+package tail;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ThreadEngine implements ConnectionEngine {
+
+	static final boolean VIRTUAL = TailServer.VIRTUAL_THREADS && hasVirtualThreads();
+
+	private final ExecutorService workers = newWorkerPool();
+
+	@Override
+	public void serve(ServerSocketChannel server, ClientList clients) {
+		System.out.println("Connection engine: thread per connection" + (VIRTUAL ? " (virtual threads)" : ""));
+		while (true) {
+			try {
+				workers.execute(new ServerThread(server.accept().socket(), clients));
+			} catch (IOException e) {
+				System.out.println("Error in accept loop!");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// a virtual thread per connection where the runtime has them (Java 21), a stream then costs a few
+	// kilobytes of heap instead of a platform thread and its stack
+	static ExecutorService newWorkerPool() {
+		ExecutorService virtual = VIRTUAL ? newVirtualWorkers() : null;
+		if (virtual != null)
+			return virtual;
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				return new Thread(null, runnable, "ServerThread-" + count.incrementAndGet(),
+						TailServer.THREAD_STACK_SIZE);
+			}
+		});
+	}
+
+	private static boolean hasVirtualThreads() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	// Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ServerThread-", 1).factory()), null if
+	// the runtime has no virtual threads; virtual threads are cheap enough that they aren't pooled
+	private static ExecutorService newVirtualWorkers() {
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+			virtual = builder.getMethod("name", String.class, long.class).invoke(virtual, "ServerThread-", 1L);
+			Object factory = builder.getMethod("factory").invoke(virtual);
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+					.invoke(null, factory);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
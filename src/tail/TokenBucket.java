@@ -0,0 +1,106 @@
+package tail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// rate limiter for sent bytes, a rate of 0 means unlimited
+class TokenBucket {
+
+	// shared by all streams
+	static final TokenBucket global = new TokenBucket(TailServer.BANDWIDTH_LIMIT);
+
+	// smallest grant worth a write, unless less was asked for
+	private static final long MIN_GRANT = 8 * 1024;
+
+	private final long rate;
+	private final long capacity;
+	private double tokens;
+	// not the monitor, takers waiting on virtual threads must not pin their carrier
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition refilling = lock.newCondition();
+	private long refilled;
+
+	public TokenBucket(long rate) {
+		this.rate = rate;
+		this.capacity = Math.max(64 * 1024, rate / 4);
+		this.tokens = capacity;
+		this.refilled = System.nanoTime();
+	}
+
+	public boolean isLimited() {
+		return rate > 0;
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	public long getTokens() {
+		if (rate <= 0)
+			return 0;
+		lock.lock();
+		try {
+			refill();
+			return (long) tokens;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// blocks until tokens are available and returns how many of the wanted ones were granted;
+	// background takers leave the lower half of the bucket to the others. An unlimited bucket never
+	// takes the lock.
+	public long take(long wanted, boolean background) {
+		if (rate <= 0 || wanted <= 0)
+			return wanted;
+		return takeLimited(wanted, background);
+	}
+
+	private long takeLimited(long wanted, boolean background) {
+		final double floor = background ? capacity / 2 : 0;
+		final long minimum = Math.min(wanted, MIN_GRANT);
+		lock.lock();
+		try {
+			while (true) {
+				refill();
+				double available = tokens - floor;
+				if (available >= minimum) {
+					long granted = Math.min(wanted, (long) available);
+					tokens -= granted;
+					return granted;
+				}
+				long millis = (long) Math.ceil((minimum - available) * 1000 / rate);
+				try {
+					refilling.await(Math.max(1, millis), TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return wanted;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// returns tokens that were taken but not used
+	public void refund(long unused) {
+		if (rate > 0 && unused > 0)
+			refundLimited(unused);
+	}
+
+	private void refundLimited(long unused) {
+		lock.lock();
+		try {
+			tokens = Math.min(capacity, tokens + unused);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - refilled) * rate / 1e9);
+		refilled = now;
+	}
+}
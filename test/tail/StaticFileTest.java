@@ -0,0 +1,181 @@
+package tail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StaticFileTest {
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final int SIZE = 1000;
+	// Sun, 18 Oct 2026 10:00:00 GMT and a bit
+	private static final long MODIFIED = 1792317600123L;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File file;
+	private String etag;
+
+	@Before
+	public void setUp() throws IOException {
+		file = temp.newFile("recording.flv");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (int i = 0; i < SIZE; i++)
+				out.write(i);
+		} finally {
+			out.close();
+		}
+		file.setLastModified(MODIFIED);
+		etag = StaticFile.etag(file);
+	}
+
+	private long[] ranges(String header) {
+		return StaticFile.parseRanges(header, file);
+	}
+
+	@Test
+	public void singleRanges() {
+		assertArrayEquals(new long[] { 0, 99 }, ranges("bytes=0-99"));
+		assertArrayEquals(new long[] { 100, SIZE - 1 }, ranges("bytes=100-"));
+		assertArrayEquals(new long[] { SIZE - 100, SIZE - 1 }, ranges("bytes=-100"));
+		assertArrayEquals(new long[] { 0, SIZE - 1 }, ranges("bytes=-5000"));
+		assertArrayEquals(new long[] { 900, SIZE - 1 }, ranges("bytes=900-5000"));
+		assertArrayEquals(new long[] { 0, 0 }, ranges(" Bytes = 0-0 "));
+	}
+
+	@Test
+	public void rangesWithUnits() {
+		assertArrayEquals(new long[] { SIZE / 2, SIZE - 1 }, ranges("bytes=50%-"));
+		assertArrayEquals(new long[] { 0, 512 }, ranges("bytes=0-0.5KiB"));
+		assertArrayEquals(new long[] { SIZE - 1000, SIZE - 1 }, ranges("bytes=-1k"));
+	}
+
+	@Test
+	public void invalidRangesAreIgnored() {
+		assertNull(ranges("bytes=abc-def"));
+		assertNull(ranges("bytes=0-def"));
+		assertNull(ranges("bytes=12x-"));
+		assertNull(ranges("bytes=1.2.3-"));
+		assertNull(ranges("bytes=0-99,abc-"));
+		assertNull(ranges("bytes=5-3"));
+		assertNull(ranges("bytes=0"));
+		assertNull(ranges("bytes=-"));
+		assertNull(ranges("items=0-99"));
+		assertNull(ranges("0-99"));
+	}
+
+	@Test
+	public void unsatisfiableRanges() {
+		assertArrayEquals(new long[0], ranges("bytes=" + SIZE + "-"));
+		assertArrayEquals(new long[0], ranges("bytes=5000-6000,-0"));
+		assertArrayEquals(new long[] { 10, 19 }, ranges("bytes=5000-,10-19"));
+	}
+
+	@Test
+	public void rangesAreSortedAndMerged() {
+		assertArrayEquals(new long[] { 0, 199, 500, 599 }, ranges("bytes=500-599,0-99,50-149,150-199"));
+		assertArrayEquals(new long[] { 0, 99, 200, 299 }, ranges("bytes=200-299,0-99"));
+		assertArrayEquals(new long[] { 0, SIZE - 1 }, ranges("bytes=0-99,-950,10-20"));
+		assertArrayEquals(new long[] { 5, 5 }, ranges("bytes=5-5,5-5,5-5"));
+	}
+
+	@Test
+	public void tooManyRanges() {
+		StringBuilder header = new StringBuilder("bytes=0-0");
+		for (int i = 1; i < 33; i++)
+			header.append(',').append(i * 2).append('-').append(i * 2);
+		assertNull(ranges(header.toString()));
+	}
+
+	@Test
+	public void ifNoneMatch() {
+		assertTrue(notModified(etag, null));
+		assertTrue(notModified("W/" + etag, null));
+		assertTrue(notModified("\"other\", " + etag, null));
+		assertTrue(notModified("*", null));
+		assertFalse(notModified("\"other\"", null));
+		// If-None-Match wins over If-Modified-Since
+		assertFalse(notModified("\"other\"", StaticFile.formatDate(MODIFIED)));
+	}
+
+	@Test
+	public void ifModifiedSince() {
+		assertTrue(notModified(null, StaticFile.formatDate(MODIFIED)));
+		assertTrue(notModified(null, StaticFile.formatDate(MODIFIED + 60000)));
+		assertFalse(notModified(null, StaticFile.formatDate(MODIFIED - 1000)));
+		assertFalse(notModified(null, "yesterday"));
+		assertFalse(notModified(null, null));
+	}
+
+	private boolean notModified(String ifNoneMatch, String ifModifiedSince) {
+		HttpRequest request = new HttpRequest();
+		request.setIfNoneMatch(ifNoneMatch);
+		request.setIfModifiedSince(ifModifiedSince);
+		return StaticFile.isNotModified(request, etag, file.lastModified());
+	}
+
+	@Test
+	public void ifRange() {
+		assertTrue(rangeValid(null));
+		assertTrue(rangeValid(etag));
+		assertFalse(rangeValid("\"other\""));
+		assertFalse(rangeValid("W/" + etag));
+		assertTrue(rangeValid(StaticFile.formatDate(MODIFIED)));
+		assertFalse(rangeValid(StaticFile.formatDate(MODIFIED + 1000)));
+		assertFalse(rangeValid("yesterday"));
+	}
+
+	private boolean rangeValid(String ifRange) {
+		HttpRequest request = new HttpRequest();
+		request.setIfRange(ifRange);
+		return StaticFile.isRangeValid(request, etag, file.lastModified());
+	}
+
+	// the body ServerThread.writeFile sends has to be exactly as long as its Content-Length
+	@Test
+	public void multipartLength() throws IOException {
+		long[] ranges = ranges("bytes=900-,0-9,100-199,-1");
+		assertArrayEquals(new long[] { 0, 9, 100, 199, 900, SIZE - 1 }, ranges);
+		String boundary = "TAILSERVER" + Long.toHexString(System.nanoTime());
+		String[] partHeaders = StaticFile.partHeaders(boundary, ranges, SIZE);
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			for (int i = 0; i < ranges.length; i += 2) {
+				body.write(partHeaders[i / 2].getBytes(LATIN1));
+				byte[] part = new byte[(int) (ranges[i + 1] - ranges[i] + 1)];
+				in.seek(ranges[i]);
+				in.readFully(part);
+				body.write(part);
+			}
+		} finally {
+			in.close();
+		}
+		body.write(StaticFile.multipartEnd(boundary).getBytes(LATIN1));
+
+		assertEquals(body.size(), StaticFile.multipartLength(boundary, partHeaders, ranges));
+		String text = new String(body.toByteArray(), LATIN1);
+		assertTrue(text.startsWith("\r\n--" + boundary + "\r\nContent-Type: video/x-flv\r\n"
+				+ "Content-Range: bytes 0-9/" + SIZE + "\r\n\r\n"));
+		assertTrue(text.contains("Content-Range: bytes 900-999/" + SIZE + "\r\n\r\n"));
+		assertTrue(text.endsWith("\r\n--" + boundary + "--\r\n"));
+	}
+}